@@ -21,17 +21,20 @@ import android.content.SharedPreferences;
 import android.preference.PreferenceManager;
 import de.knufficast.events.EventBus;
 import de.knufficast.flattr.FlattrQueue;
+import de.knufficast.logic.DownloadProgress;
 import de.knufficast.logic.ImageCache;
 import de.knufficast.logic.db.Configuration;
 import de.knufficast.logic.db.DBEpisode;
 import de.knufficast.logic.db.DBFeed;
 import de.knufficast.logic.db.Database;
+import de.knufficast.logic.db.DatabaseStats;
 import de.knufficast.logic.db.Queue;
 import de.knufficast.logic.db.SQLiteHelper;
 import de.knufficast.player.QueuePlayer;
 import de.knufficast.util.LockManager;
 import de.knufficast.util.file.CacheFileUtil;
 import de.knufficast.watchers.ConfigurationSaver;
+import de.knufficast.watchers.ContentPrewarmer;
 import de.knufficast.watchers.DownloadRemover;
 import de.knufficast.watchers.DownloadWatcher;
 import de.knufficast.watchers.FlattrWatcher;
@@ -56,9 +59,13 @@ public class App extends Application {
       eventBus);
   private final DownloadRemover downloadRemover = new DownloadRemover(this,
       eventBus);
+  private final ContentPrewarmer contentPrewarmer = new ContentPrewarmer(
+      eventBus);
   private final FlattrWatcher flattrWatcher = new FlattrWatcher(this, eventBus);
   private final FlattrQueue flattrQueue = new FlattrQueue();
   private final Database database = new Database(this);
+  private final DownloadProgress downloadProgress = new DownloadProgress(
+      eventBus);
 
   private final String KEY_QUEUE_PREF = "queue";
 
@@ -72,6 +79,7 @@ public class App extends Application {
   public void onCreate() {
     super.onCreate();
     instance = this;
+    DatabaseStats.setEnabled(configuration.recordDatabaseStats());
     database.open();
     load();
     queuePlayer = new QueuePlayer(getQueue(), this, eventBus);
@@ -81,10 +89,20 @@ public class App extends Application {
     configurationSaver.register();
     downloadWatcher.register();
     downloadRemover.register();
+    contentPrewarmer.register();
     flattrWatcher.register();
     configuration.sanitize();
   }
 
+  /**
+   * We might be killed soon after this, so get pending writes out.
+   */
+  @Override
+  public void onTrimMemory(int level) {
+    super.onTrimMemory(level);
+    database.flush();
+  }
+
   /**
    * Returns the singleton App object.
    */
@@ -138,6 +156,13 @@ public class App extends Application {
     return lockManager;
   }
 
+  /**
+   * Returns the global {@link DownloadProgress}.
+   */
+  public DownloadProgress getDownloadProgress() {
+    return downloadProgress;
+  }
+
   public FlattrQueue getFlattrQueue() {
     return flattrQueue;
   }
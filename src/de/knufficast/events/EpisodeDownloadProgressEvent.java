@@ -15,21 +15,26 @@
  ******************************************************************************/
 package de.knufficast.events;
 
+import java.util.Set;
 
 /**
- * An event that signifies that the download progress of an URL has changed.
+ * An event that signifies that the download progress of some episodes has
+ * changed.
  * 
  * @author crazywater
  */
 public class EpisodeDownloadProgressEvent implements Event {
-  private long id;
+  private Set<Long> ids;
 
-  public EpisodeDownloadProgressEvent(long id) {
-    this.id = id;
+  public EpisodeDownloadProgressEvent(Set<Long> ids) {
+    this.ids = ids;
   }
 
-  public long getIdentifier() {
-    return id;
+  /**
+   * Returns the IDs of the episodes whose progress changed.
+   */
+  public Set<Long> getIdentifiers() {
+    return ids;
   }
 }
 
@@ -16,7 +16,6 @@
 package de.knufficast.logic;
 
 import java.io.IOException;
-import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.List;
 
@@ -27,6 +26,8 @@ import android.util.Log;
 import de.knufficast.logic.db.Configuration;
 import de.knufficast.logic.db.XMLToDBWriter;
 import de.knufficast.logic.xml.XMLFeed;
+import de.knufficast.util.CompressedTransfer;
+import de.knufficast.util.HttpTransport;
 
 /**
  * A background task that downloads RSS feeds, parses them and adds them to the
@@ -61,12 +62,18 @@ public class AddFeedTask extends AsyncTask<String, Void, Void> {
         if (isCancelled()) {
           return null;
         }
-        HttpURLConnection con = (HttpURLConnection) new URL(url)
-            .openConnection();
-        if (isCancelled()) {
-          return null;
+        HttpTransport.Exchange exchange = HttpTransport.get().open(
+            new URL(url));
+        List<XMLFeed> feeds;
+        try {
+          CompressedTransfer.request(exchange.getConnection());
+          if (isCancelled()) {
+            return null;
+          }
+          feeds = new FeedDownloader().getFeeds(exchange);
+        } finally {
+          exchange.close();
         }
-        List<XMLFeed> feeds = new FeedDownloader().getFeeds(con);
         if (isCancelled()) {
           return null;
         }
@@ -0,0 +1,66 @@
+/*******************************************************************************
+ * Copyright 2012 Crazywater
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.knufficast.logic;
+
+import org.xmlpull.v1.XmlPullParser;
+
+/**
+ * The attributes of the tag that {@link XmlParser} is currently reporting.
+ * Reads straight from the underlying pull parser, so nothing is copied for
+ * tags whose attributes aren't looked at. Names are compared case-insensitively.
+ * Only valid during the {@link XmlParser#openTag} call.
+ * 
+ * @author crazywater
+ * 
+ */
+public class Attributes {
+  private XmlPullParser xpp;
+
+  void setParser(XmlPullParser xpp) {
+    this.xpp = xpp;
+  }
+
+  /**
+   * Returns the value of the attribute, or null if the tag doesn't have it.
+   * 
+   * @param name
+   *          the attribute name in lower case
+   */
+  public String get(String name) {
+    int count = xpp.getAttributeCount();
+    for (int i = 0; i < count; i++) {
+      if (name.equalsIgnoreCase(xpp.getAttributeName(i))) {
+        return xpp.getAttributeValue(i);
+      }
+    }
+    return null;
+  }
+
+  public int size() {
+    return xpp.getAttributeCount();
+  }
+
+  /**
+   * Returns the lower-case name of the i-th attribute.
+   */
+  public String getName(int i) {
+    return xpp.getAttributeName(i).toLowerCase();
+  }
+
+  public String getValue(int i) {
+    return xpp.getAttributeValue(i);
+  }
+}
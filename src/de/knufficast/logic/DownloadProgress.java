@@ -0,0 +1,151 @@
+/*******************************************************************************
+ * Copyright 2012 Crazywater
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.knufficast.logic;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import android.os.Handler;
+import android.os.Looper;
+import de.knufficast.events.EpisodeDownloadProgressEvent;
+import de.knufficast.events.EventBus;
+import de.knufficast.logic.db.DBEpisode;
+
+/**
+ * Keeps the progress of running downloads in memory. The database only gets
+ * it at checkpoints: every {@link #CHECKPOINT_BYTES} and when a download ends
+ * for any reason. Listeners get one {@link EpisodeDownloadProgressEvent} for
+ * all episodes that progressed in the last {@link #SNAPSHOT_INTERVAL}.
+ * {@link DBEpisode#getDownloadedBytes} and {@link DBEpisode#getTotalBytes} ask
+ * here first.
+ * 
+ * @author crazywater
+ * 
+ */
+public class DownloadProgress {
+  private static final long CHECKPOINT_BYTES = 4 * 1024 * 1024;
+  private static final long SNAPSHOT_INTERVAL = 500; // ms
+
+  private final EventBus eventBus;
+  private final Handler handler = new Handler(Looper.getMainLooper());
+  private final Map<Long, Progress> running = new ConcurrentHashMap<Long, Progress>();
+  private final Set<Long> changed = new HashSet<Long>();
+  private boolean snapshotPending = false;
+
+  private final Runnable sendSnapshot = new Runnable() {
+    @Override
+    public void run() {
+      Set<Long> ids;
+      synchronized (DownloadProgress.this) {
+        ids = new HashSet<Long>(changed);
+        changed.clear();
+        snapshotPending = false;
+      }
+      eventBus.fireEvent(new EpisodeDownloadProgressEvent(ids));
+    }
+  };
+
+  private static class Progress {
+    private volatile long downloaded;
+    private volatile long total;
+    private long checkpointed;
+  }
+
+  public DownloadProgress(EventBus eventBus) {
+    this.eventBus = eventBus;
+  }
+
+  /**
+   * Records the progress of a running download.
+   */
+  public void update(DBEpisode episode, long downloaded, long total) {
+    boolean checkpoint = false;
+    synchronized (this) {
+      Progress progress = running.get(episode.getId());
+      if (progress == null) {
+        progress = new Progress();
+        running.put(episode.getId(), progress);
+      }
+      progress.downloaded = downloaded;
+      progress.total = total;
+      if (Math.abs(downloaded - progress.checkpointed) >= CHECKPOINT_BYTES) {
+        progress.checkpointed = downloaded;
+        checkpoint = true;
+      }
+      changed(episode);
+    }
+    // outside the lock, which the UI thread takes for the snapshots
+    if (checkpoint) {
+      episode.saveDownloadProgress(downloaded, total);
+    }
+  }
+
+  /**
+   * Saves the progress of a download that ended, because it completed,
+   * failed or was paused, and stops tracking it.
+   */
+  public void finish(DBEpisode episode) {
+    Progress progress = running.get(episode.getId());
+    if (progress == null) {
+      return;
+    }
+    // saved before it is dropped, so readers never see the older values
+    episode.saveDownloadProgress(progress.downloaded, progress.total);
+    synchronized (this) {
+      running.remove(episode.getId());
+      changed(episode);
+    }
+  }
+
+  /**
+   * Stops tracking the episode without saving, e.g. because its download is
+   * deleted.
+   */
+  public synchronized void forget(DBEpisode episode) {
+    running.remove(episode.getId());
+  }
+
+  /**
+   * Returns the bytes downloaded so far, or -1 if the episode isn't being
+   * downloaded.
+   */
+  public long getDownloadedBytes(long episodeId) {
+    Progress progress = running.get(episodeId);
+    return progress == null ? -1 : progress.downloaded;
+  }
+
+  /**
+   * Returns the size of the download, or -1 if the episode isn't being
+   * downloaded.
+   */
+  public long getTotalBytes(long episodeId) {
+    Progress progress = running.get(episodeId);
+    return progress == null ? -1 : progress.total;
+  }
+
+  /**
+   * Must be called with the lock held.
+   */
+  private void changed(DBEpisode episode) {
+    changed.add(episode.getId());
+    if (!snapshotPending) {
+      snapshotPending = true;
+      handler.postDelayed(sendSnapshot, SNAPSHOT_INTERVAL);
+    }
+  }
+}
@@ -0,0 +1,213 @@
+/*******************************************************************************
+ * Copyright 2012 Crazywater
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.knufficast.logic;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Decides which downloads run. Items are wanted in priority order, and the
+ * first ones run, up to the concurrency. A second download from the same host
+ * only runs if no other host has anything waiting. When a more important item
+ * comes along while all slots are taken, the least important running one is
+ * stopped and goes back to waiting.
+ * 
+ * <p>
+ * Stopping is not immediate: a stopped item isn't started again until
+ * {@link #finished} reports that its download has ended, so that two
+ * downloads never write the same file.
+ * 
+ * @author crazywater
+ * 
+ */
+public class DownloadScheduler<T> {
+  /**
+   * Carries out what the scheduler decided. Called outside of its lock.
+   */
+  public interface Downloads<T> {
+    String getHost(T item);
+
+    void start(T item);
+
+    void stop(T item);
+  }
+
+  private final Downloads<T> downloads;
+  private int concurrency;
+  private final List<T> wanted = new ArrayList<T>();
+  private final Set<T> running = new HashSet<T>();
+  private final Set<T> stopping = new HashSet<T>();
+
+  public DownloadScheduler(int concurrency, Downloads<T> downloads) {
+    this.concurrency = concurrency;
+    this.downloads = downloads;
+  }
+
+  /**
+   * Replaces the wanted items, most important first. Running items that are
+   * no longer wanted are stopped.
+   */
+  public void setWanted(List<T> items) {
+    Changes changes;
+    synchronized (this) {
+      wanted.clear();
+      for (T item : new LinkedHashSet<T>(items)) {
+        wanted.add(item);
+      }
+      changes = schedule();
+    }
+    changes.apply();
+  }
+
+  public void setConcurrency(int concurrency) {
+    Changes changes;
+    synchronized (this) {
+      if (this.concurrency == concurrency) {
+        return;
+      }
+      this.concurrency = concurrency;
+      changes = schedule();
+    }
+    changes.apply();
+  }
+
+  /**
+   * Reports that the download of the item has ended. If it was stopped, it
+   * waits to be started again; otherwise it succeeded or failed and is no
+   * longer wanted until the next {@link #setWanted}.
+   */
+  public void finished(T item) {
+    Changes changes;
+    synchronized (this) {
+      if (running.remove(item)) {
+        wanted.remove(item);
+      }
+      stopping.remove(item);
+      changes = schedule();
+    }
+    changes.apply();
+  }
+
+  /**
+   * Stops the download of the item if it is running and forgets about it.
+   */
+  public void remove(T item) {
+    Changes changes;
+    synchronized (this) {
+      wanted.remove(item);
+      changes = schedule();
+    }
+    changes.apply();
+  }
+
+  /**
+   * Stops all downloads and forgets about all items.
+   */
+  public void stopAll() {
+    setWanted(new ArrayList<T>());
+  }
+
+  /**
+   * Returns the running items, most important first.
+   */
+  public synchronized List<T> getRunning() {
+    List<T> result = new ArrayList<T>();
+    for (T item : wanted) {
+      if (running.contains(item)) {
+        result.add(item);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns the wanted items that don't run, most important first.
+   */
+  public synchronized List<T> getWaiting() {
+    List<T> result = new ArrayList<T>();
+    for (T item : wanted) {
+      if (!running.contains(item)) {
+        result.add(item);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns the items that were stopped but whose downloads haven't ended yet.
+   */
+  public synchronized Set<T> getStopping() {
+    return new HashSet<T>(stopping);
+  }
+
+  /**
+   * Must be called with the lock held.
+   */
+  private Changes schedule() {
+    Set<T> chosen = new LinkedHashSet<T>();
+    // first one per host, then fill up the remaining slots in order
+    Set<String> hosts = new HashSet<String>();
+    for (T item : wanted) {
+      if (chosen.size() >= concurrency) {
+        break;
+      }
+      if (!stopping.contains(item) && hosts.add(downloads.getHost(item))) {
+        chosen.add(item);
+      }
+    }
+    for (T item : wanted) {
+      if (chosen.size() >= concurrency) {
+        break;
+      }
+      if (!stopping.contains(item)) {
+        chosen.add(item);
+      }
+    }
+
+    Changes changes = new Changes();
+    for (T item : new ArrayList<T>(running)) {
+      if (!chosen.contains(item)) {
+        running.remove(item);
+        stopping.add(item);
+        changes.toStop.add(item);
+      }
+    }
+    for (T item : chosen) {
+      if (running.add(item)) {
+        changes.toStart.add(item);
+      }
+    }
+    return changes;
+  }
+
+  private class Changes {
+    private final List<T> toStop = new ArrayList<T>();
+    private final List<T> toStart = new ArrayList<T>();
+
+    private void apply() {
+      // stop first, so that their connections are freed for the new ones
+      for (T item : toStop) {
+        downloads.stop(item);
+      }
+      for (T item : toStart) {
+        downloads.start(item);
+      }
+    }
+  }
+}
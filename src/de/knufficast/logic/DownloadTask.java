@@ -15,20 +15,23 @@
  ******************************************************************************/
 package de.knufficast.logic;
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 import android.content.Context;
 import android.os.AsyncTask;
 import android.util.Pair;
 import de.knufficast.App;
 import de.knufficast.util.BooleanCallback;
+import de.knufficast.util.BufferPool;
 import de.knufficast.util.Callback;
+import de.knufficast.util.HttpTransport;
 import de.knufficast.util.file.ExternalFileUtil;
 import de.knufficast.util.file.FileUtil;
 
@@ -55,10 +58,24 @@ public class DownloadTask extends AsyncTask<String, Long, String> {
   public static final String ERROR_CONTENT_LENGTH = "Invalid content length";
   public static final String ERROR_CONNECTION = "Connection error";
   public static final String ERROR_OTHER = "Unknown error";
+  // reported to the finished callback when the task was cancelled
+  public static final String CANCELLED = "Cancelled";
 
   // How often progress is reported to the callback
   private static final long PUBLISH_INTERVAL = 250; // ms
 
+  private final SegmentedDownload.Listener segmentListener = new SegmentedDownload.Listener() {
+    @Override
+    public void onProgress(long downloaded, long length) {
+      publishProgressRateLimited(downloaded, length);
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return DownloadTask.this.isCancelled();
+    }
+  };
+
   public DownloadTask(Context context,
       Callback<Pair<Long, Long>> progressCallback,
       BooleanCallback<Void, String> finishedCallback) {
@@ -90,70 +107,98 @@ public class DownloadTask extends AsyncTask<String, Long, String> {
       
       HttpURLConnection.setFollowRedirects(true);
 
-      HttpURLConnection connection = (HttpURLConnection) url.openConnection();
       File file = fileUtil.resolveFile(filename);
-      long initiallyDownloaded = file.length();
+      SegmentedDownload segmented = SegmentedDownload.resume(file);
+      if (segmented != null) {
+        segmented.run(segmentListener);
+        return SUCCESS;
+      }
 
-      boolean append = initiallyDownloaded > 0;
+      HttpTransport.Exchange exchange = HttpTransport.get().open(url);
+      try {
+        HttpURLConnection connection = exchange.getConnection();
+        long initiallyDownloaded = file.length();
 
-      // resume download if possible
-      if (append) {
-        connection.setRequestProperty("Range", "bytes=" + initiallyDownloaded
-            + "-");
-      }
-      if (!isCancelled()) {
-        connection.connect();
-        if (connection.getResponseCode() / 100 == 3) {
-          // redirect
-          String location = connection.getHeaderField("Location");
-          connection = (HttpURLConnection) new URL(location).openConnection();
-          if (append) {
-            connection.setRequestProperty("Range", "bytes="
-                + initiallyDownloaded + "-");
-          }
-          connection.connect();
-        }
-        if (connection.getResponseCode() == 416) {
-          file.delete();
-          throw new RuntimeException(ERROR_DATA_RANGE);
-        }
+        boolean append = initiallyDownloaded > 0;
 
-        // check responsecode 2xx
-        if (connection.getResponseCode() / 100 != 2) {
-          throw new RuntimeException(ERROR_RESPONSE_CODE);
-        }
-        if (!"bytes".equals(connection.getHeaderField("Accept-Ranges"))) {
-          append = false;
+        // resume download if possible
+        if (append) {
+          connection.setRequestProperty("Range", "bytes=" + initiallyDownloaded
+              + "-");
         }
-  
-        // open output
-        FileOutputStream output = new FileOutputStream(file, append);
-  
-        // open input
-        InputStream input = new BufferedInputStream(connection.getInputStream());
-  
-        // check content length
-        int contentLength = connection.getContentLength();
-        if (!(contentLength > 0)) {
-          input.close();
-          output.close();
-          throw new RuntimeException(ERROR_CONTENT_LENGTH);
-        }
-  
-        byte data[] = new byte[1024];
-  
-        int count = 0;
-        long downloaded = initiallyDownloaded;
-        while (!isCancelled() && (count = input.read(data)) != -1) {
-          output.write(data, 0, count);
-          downloaded += count;
-          publishProgressRateLimited(downloaded, contentLength
-              + initiallyDownloaded);
+        if (!isCancelled()) {
+          int responseCode = exchange.connect();
+          if (responseCode / 100 == 3) {
+            // redirect
+            String location = connection.getHeaderField("Location");
+            exchange.close();
+            exchange = HttpTransport.get().open(new URL(location));
+            connection = exchange.getConnection();
+            if (append) {
+              connection.setRequestProperty("Range", "bytes="
+                  + initiallyDownloaded + "-");
+            }
+            responseCode = exchange.connect();
+          }
+          if (responseCode == 416) {
+            file.delete();
+            throw new RuntimeException(ERROR_DATA_RANGE);
+          }
+
+          // check responsecode 2xx
+          if (responseCode / 100 != 2) {
+            throw new RuntimeException(ERROR_RESPONSE_CODE);
+          }
+          if (!"bytes".equals(connection.getHeaderField("Accept-Ranges"))) {
+            append = false;
+          } else if (!append
+              && connection.getContentLength() >= SegmentedDownload.MIN_LENGTH) {
+            // large enough to be worth several connections
+            segmented = SegmentedDownload.start(connection.getURL(), file,
+                connection.getContentLength(), getValidator(connection));
+            exchange.close();
+            segmented.run(segmentListener);
+            return SUCCESS;
+          }
+    
+          // open output; resuming writes after what is already there
+          long start = append ? initiallyDownloaded : 0;
+          RandomAccessFile output = new RandomAccessFile(file, "rw");
+          FileChannel channel = output.getChannel();
+          channel.truncate(start);
+          channel.position(start);
+
+          // open input
+          InputStream input = exchange.getInputStream();
+
+          // check content length
+          int contentLength = connection.getContentLength();
+          if (!(contentLength > 0)) {
+            input.close();
+            output.close();
+            throw new RuntimeException(ERROR_CONTENT_LENGTH);
+          }
+
+          ByteBuffer buffer = BufferPool.acquire();
+          try {
+            long downloaded = start;
+            int count;
+            while (!isCancelled()
+                && (count = BufferPool.read(input, buffer, Long.MAX_VALUE)) != -1) {
+              while (buffer.hasRemaining()) {
+                channel.write(buffer);
+              }
+              downloaded += count;
+              publishProgressRateLimited(downloaded, contentLength + start);
+            }
+          } finally {
+            BufferPool.release(buffer);
+            output.close();
+            input.close();
+          }
         }
-  
-        output.flush();
-        output.close();
-        input.close();
+      } finally {
+        exchange.close();
       }
       return SUCCESS;
     } catch (IOException e) {
@@ -165,11 +210,25 @@ public class DownloadTask extends AsyncTask<String, Long, String> {
     }
   }
 
+  /**
+   * Returns what identifies the version of the response for If-Range: a strong
+   * ETag, else the Last-Modified date, else "".
+   */
+  private static String getValidator(HttpURLConnection connection) {
+    String eTag = connection.getHeaderField("ETag");
+    if (eTag != null && !eTag.startsWith("W/")) {
+      return eTag;
+    }
+    String lastModified = connection.getHeaderField("Last-Modified");
+    return lastModified == null ? "" : lastModified;
+  }
+
   /**
    * Rate-limits the progress such that it isn't reported more often than
-   * {@link #PUBLISH_INTERVAL}.
+   * {@link #PUBLISH_INTERVAL}. Synchronized because the segments of a
+   * {@link SegmentedDownload} report from their own threads.
    */
-  private void publishProgressRateLimited(long downloaded, long length) {
+  private synchronized void publishProgressRateLimited(long downloaded, long length) {
     long now = System.currentTimeMillis();
     if (now - lastPublishTimestamp >= PUBLISH_INTERVAL) {
       lastPublishTimestamp = now;
@@ -179,11 +238,19 @@ public class DownloadTask extends AsyncTask<String, Long, String> {
 
   @Override
   protected void onProgressUpdate(Long... progress) {
-    if (progressCallback != null) {
+    // may still arrive after cancel(), but the download is over by then
+    if (progressCallback != null && !isCancelled()) {
       progressCallback.call(Pair.create(progress[0], progress[1]));
     }
   }
 
+  @Override
+  protected void onCancelled(String result) {
+    if (finishedCallback != null) {
+      finishedCallback.fail(CANCELLED);
+    }
+  }
+
   @Override
   protected void onPostExecute(String result) {
     if (finishedCallback != null) {
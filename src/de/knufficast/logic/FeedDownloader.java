@@ -15,31 +15,185 @@
  ******************************************************************************/
 package de.knufficast.logic;
 
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.List;
 
 import org.xmlpull.v1.XmlPullParserException;
 
 import de.knufficast.logic.xml.XMLFeed;
+import de.knufficast.util.CompressedTransfer;
+import de.knufficast.util.HttpTransport;
 
 /**
  * A thin layer around {@link RssParser} that extracts further information about
- * the feed and feeds them in.
+ * the feed and feeds them in. Compressed responses are decompressed while
+ * parsing; use {@link CompressedTransfer#request} on the connection to ask
+ * for them.
  * 
  * @author crazywater
  * 
  */
 public class FeedDownloader {
-  public List<XMLFeed> getFeeds(HttpURLConnection connection)
-      throws IOException,
-      XmlPullParserException {
+  private long deadline = Long.MAX_VALUE;
 
+  /**
+   * Makes reading the response fail with a {@link SocketTimeoutException} once
+   * {@link System#nanoTime} has passed the deadline. Together with the read
+   * timeout of the connection, this bounds how long a feed can take.
+   */
+  public void setDeadline(long deadline) {
+    this.deadline = deadline;
+  }
+
+  public List<XMLFeed> getFeeds(HttpTransport.Exchange exchange)
+      throws IOException, XmlPullParserException {
+    exchange.connect();
+    HttpURLConnection connection = exchange.getConnection();
     long timestamp = connection.getDate();
     String eTag = connection.getHeaderField("ETag");
     RssParser parser = new RssParser();
-    parser.parse(connection.getInputStream(), connection.getURL()
-        .toString(), timestamp, eTag);
+    InputStream in = open(exchange);
+    try {
+      parser.parse(in, connection.getURL().toString(), timestamp, eTag);
+    } finally {
+      in.close();
+    }
     return parser.getFeeds();
   }
+
+  /**
+   * Streams the feed into the sink. If the sink stops early, the rest of the
+   * response is not downloaded: unless little is left, the connection is
+   * closed right away.
+   */
+  public void streamFeeds(HttpTransport.Exchange exchange, FeedSink sink)
+      throws IOException, XmlPullParserException {
+    streamFeeds(exchange, open(exchange), sink);
+  }
+
+  /**
+   * Like {@link #streamFeeds(HttpTransport.Exchange, FeedSink)}, but parses a
+   * body that has already been read from the connection.
+   */
+  public void streamFeeds(HttpTransport.Exchange exchange, InputStream in,
+      FeedSink sink) throws IOException, XmlPullParserException {
+    exchange.connect();
+    HttpURLConnection connection = exchange.getConnection();
+    long timestamp = connection.getDate();
+    String eTag = connection.getHeaderField("ETag");
+    try {
+      new RssParser().parse(in, connection.getURL().toString(), timestamp,
+          eTag, sink);
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Reads the whole response body and computes the SHA-1 of the decompressed
+   * body while reading, so it doesn't depend on the transfer encoding.
+   */
+  public DigestedBody download(HttpTransport.Exchange exchange)
+      throws IOException {
+    exchange.connect();
+    MessageDigest sha1;
+    try {
+      sha1 = MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      // every Java platform has SHA-1
+      throw new IllegalStateException(e);
+    }
+    int length = exchange.getConnection().getContentLength();
+    ByteArrayOutputStream out = new ByteArrayOutputStream(length > 0 ? length
+        : 64 * 1024);
+    InputStream in = new DigestInputStream(open(exchange), sha1);
+    try {
+      byte[] buffer = new byte[8192];
+      int read;
+      while ((read = in.read(buffer)) > 0) {
+        out.write(buffer, 0, read);
+      }
+    } finally {
+      in.close();
+    }
+    return new DigestedBody(out.toByteArray(), toHex(sha1.digest()));
+  }
+
+  private InputStream open(HttpTransport.Exchange exchange)
+      throws IOException {
+    InputStream in = CompressedTransfer.open(exchange).getStream();
+    return deadline == Long.MAX_VALUE ? in : new DeadlineInputStream(in,
+        deadline);
+  }
+
+  private static String toHex(byte[] bytes) {
+    StringBuilder sb = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+      sb.append(Character.forDigit(b & 0xf, 16));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Fails reads after a point in time.
+   */
+  private static class DeadlineInputStream extends FilterInputStream {
+    private final long deadline;
+
+    DeadlineInputStream(InputStream in, long deadline) {
+      super(in);
+      this.deadline = deadline;
+    }
+
+    @Override
+    public int read() throws IOException {
+      check();
+      return super.read();
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      check();
+      return super.read(buffer, offset, length);
+    }
+
+    private void check() throws SocketTimeoutException {
+      if (System.nanoTime() - deadline > 0) {
+        throw new SocketTimeoutException("Feed took too long to download");
+      }
+    }
+  }
+
+  /**
+   * A downloaded document together with its SHA-1.
+   */
+  public static class DigestedBody {
+    private final byte[] body;
+    private final String digest;
+
+    private DigestedBody(byte[] body, String digest) {
+      this.body = body;
+      this.digest = digest;
+    }
+
+    public byte[] getBody() {
+      return body;
+    }
+
+    /**
+     * The SHA-1 of the body as lower-case hex.
+     */
+    public String getDigest() {
+      return digest;
+    }
+  }
 }
@@ -0,0 +1,44 @@
+/*******************************************************************************
+ * Copyright 2012 Crazywater
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.knufficast.logic;
+
+import de.knufficast.logic.xml.XMLEpisode;
+import de.knufficast.logic.xml.XMLFeed;
+
+/**
+ * Receives the episodes of a feed one by one while {@link RssParser} is still
+ * reading it, instead of getting the whole feed at the end.
+ * 
+ * @author crazywater
+ * 
+ */
+public interface FeedSink {
+  /**
+   * Called for every episode as soon as it has been read. The feed holds
+   * whatever came before the episode in the document (usually title,
+   * description and image), but not the episodes.
+   * 
+   * @return false to stop parsing, e.g. because the rest of the feed is known
+   *         already
+   */
+  boolean episode(XMLFeed feed, XMLEpisode episode);
+
+  /**
+   * Called when a feed has been read completely. Not called if parsing was
+   * stopped before.
+   */
+  void feedFinished(XMLFeed feed);
+}
@@ -0,0 +1,140 @@
+/*******************************************************************************
+ * Copyright 2012 Crazywater
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.knufficast.logic;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import de.knufficast.logic.db.DBFeed;
+
+/**
+ * Decides when each feed is refreshed next. Feeds are checked a few times per
+ * episode they usually publish, but at least daily while they are active;
+ * feeds that have been quiet for much longer than usual are checked less and
+ * less often. The user's update interval is the shortest interval and a feed's
+ * ttl or update period is respected.
+ * 
+ * @author crazywater
+ * 
+ */
+public class RefreshSchedule {
+  private static final long HOUR = 60 * 60 * 1000L;
+  private static final long DAY = 24 * HOUR;
+  // even dead feeds are checked this often
+  private static final long MAX_INTERVAL = 7 * DAY;
+  // how much the latest observation counts in the publish interval
+  private static final double WEIGHT = 0.3;
+  // alarms are inexact, so feeds due a little later are refreshed along
+  private static final long SLACK = 10 * 60 * 1000L;
+  // failed refreshes back off up to the user's interval times this
+  private static final int MAX_BACKOFF_SHIFT = 6;
+
+  private final long userInterval;
+
+  /**
+   * @param userInterval
+   *          the update interval the user has set, in ms
+   */
+  public RefreshSchedule(long userInterval) {
+    this.userInterval = userInterval;
+  }
+
+  /**
+   * Returns the feeds that are due at the given time.
+   */
+  public List<DBFeed> getDue(List<DBFeed> feeds, long now) {
+    List<DBFeed> due = new ArrayList<DBFeed>();
+    for (DBFeed feed : feeds) {
+      if (feed.getNextDue() <= now + SLACK) {
+        due.add(feed);
+      }
+    }
+    return due;
+  }
+
+  /**
+   * Returns when the first of the feeds is due. Feeds that are overdue at the
+   * given time, e.g. because there was no network, count as due at retryAt,
+   * as do feeds when there are none.
+   */
+  public long getNextWakeup(List<DBFeed> feeds, long now, long retryAt) {
+    if (feeds.isEmpty()) {
+      return retryAt;
+    }
+    long next = Long.MAX_VALUE;
+    for (DBFeed feed : feeds) {
+      long due = feed.getNextDue();
+      next = Math.min(next, due > now ? due : retryAt);
+    }
+    return next;
+  }
+
+  /**
+   * Records a successful refresh that found the given number of new episodes
+   * and schedules the next one.
+   */
+  public void refreshed(DBFeed feed, int newEpisodes, long now) {
+    long publishInterval = feed.getPublishInterval();
+    long lastNewEpisode = feed.getLastNewEpisode();
+    if (newEpisodes > 0) {
+      if (lastNewEpisode > 0) {
+        long observed = (now - lastNewEpisode) / newEpisodes;
+        publishInterval = publishInterval == 0 ? observed
+            : (long) ((1 - WEIGHT) * publishInterval + WEIGHT * observed);
+        feed.setPublishInterval(publishInterval);
+      }
+      lastNewEpisode = now;
+      feed.setLastNewEpisode(now);
+    } else if (lastNewEpisode == 0) {
+      // start observing from here
+      lastNewEpisode = now;
+      feed.setLastNewEpisode(now);
+    }
+    feed.setRefreshFailures(0);
+    feed.setNextDue(now
+        + getInterval(publishInterval, now - lastNewEpisode,
+            feed.getRefreshHint()));
+  }
+
+  /**
+   * Records a failed refresh and schedules the next attempt: after the user's
+   * interval, doubled with every further failure in a row.
+   */
+  public void failed(DBFeed feed, long now) {
+    int failures = feed.getRefreshFailures() + 1;
+    feed.setRefreshFailures(failures);
+    feed.setNextDue(now + getBackoff(failures));
+  }
+
+  long getBackoff(int failures) {
+    long backoff = userInterval << Math.min(failures - 1, MAX_BACKOFF_SHIFT);
+    return Math.max(userInterval, Math.min(backoff, MAX_INTERVAL));
+  }
+
+  /**
+   * The time until the next refresh of a feed with the given history.
+   */
+  long getInterval(long publishInterval, long quietFor, long refreshHint) {
+    long interval = publishInterval > 0 ? publishInterval / 4 : userInterval;
+    interval = Math.min(interval, DAY);
+    if (quietFor > 2 * Math.max(publishInterval, DAY)) {
+      // probably paused or dead: back off with the silence
+      interval = Math.max(interval, quietFor / 4);
+    }
+    interval = Math.max(interval, refreshHint);
+    return Math.max(userInterval, Math.min(interval, MAX_INTERVAL));
+  }
+}
@@ -19,7 +19,6 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 
 import org.xmlpull.v1.XmlPullParserException;
 
@@ -35,6 +34,7 @@ import de.knufficast.logic.xml.XMLFeed;
  */
 public class RssParser extends XmlParser {
   private List<XMLFeed> feeds;
+  private FeedSink sink;
   private String feedUrl;
   private long timestamp;
   private String eTag;
@@ -51,6 +51,10 @@ public class RssParser extends XmlParser {
   private static final String LINK_TAG = "link";
   private static final String IMAGE_TAG = "image";
   private static final String CONTENT_TAG = "encoded";
+  private static final String TTL_TAG = "ttl";
+  // tag names arrive lower-cased, see XmlParser
+  private static final String UPDATE_PERIOD_TAG = "updateperiod";
+  private static final String UPDATE_FREQUENCY_TAG = "updatefrequency";
   private static final String LOCATION_ATTRIBUTE = "href";
   private static final String URL_ATTRIBUTE = "url";
   private static final String REL_ATTRIBUTE = "rel";
@@ -58,6 +62,22 @@ public class RssParser extends XmlParser {
   public void parse(InputStream xml, String feedUrl, long timestamp, String eTag)
       throws XmlPullParserException, IOException {
     feeds = new ArrayList<XMLFeed>();
+    sink = null;
+    this.feedUrl = feedUrl;
+    this.timestamp = timestamp;
+    this.eTag = eTag;
+    this.parseFrom(xml);
+  }
+
+  /**
+   * Parses the XML input and passes every episode to the sink as soon as it
+   * has been read, instead of collecting the feeds. Returns early if the sink
+   * asks to stop.
+   */
+  public void parse(InputStream xml, String feedUrl, long timestamp,
+      String eTag, FeedSink sink) throws XmlPullParserException, IOException {
+    feeds = null;
+    this.sink = sink;
     this.feedUrl = feedUrl;
     this.timestamp = timestamp;
     this.eTag = eTag;
@@ -66,7 +86,7 @@ public class RssParser extends XmlParser {
 
   /**
    * Returns the parsed feeds from a previous call to {@link #parseFrom} or null
-   * if no call was made.
+   * if no call was made or the call used a {@link FeedSink}.
    */
   public List<XMLFeed> getFeeds() {
     return feeds;
@@ -78,9 +98,9 @@ public class RssParser extends XmlParser {
    * @param tag
    *          the tag name
    * @param attributes
-   *          the attributes of the tag (name->value) mapping
+   *          the attributes of the tag
    */
-  protected void openTag(String tag, Map<String, String> attributes) {
+  protected void openTag(String tag, Attributes attributes) {
     if (tag.equals(FEED_TAG)) {
       feed = new XMLFeed();
       feed.setDataUrl(feedUrl);
@@ -118,11 +138,26 @@ public class RssParser extends XmlParser {
    */
   protected void closeTag(String tag) {
     if (tag.equals(FEED_TAG)) {
-      feeds.add(feed);
+      if (sink != null) {
+        sink.feedFinished(feed);
+      } else {
+        feeds.add(feed);
+      }
       feed = null;
     }
     if (tag.equals(EPISODE_TAG)) {
-      feed.addEpisode(episode);
+      // the GUID identifies an episode within its feed, so it must not be empty
+      if ("".equals(episode.getGuid())) {
+        episode.setGuid("".equals(episode.getDataUrl()) ? episode.getTitle()
+            : episode.getDataUrl());
+      }
+      if (sink != null) {
+        if (!sink.episode(feed, episode)) {
+          stop();
+        }
+      } else {
+        feed.addEpisode(episode);
+      }
       episode = null;
     }
   }
@@ -150,6 +185,22 @@ public class RssParser extends XmlParser {
       episode.setDescription(text);
     } else if (tag.equals(DESCRIPTION_TAG) && FEED_TAG.equals(getParentTag())) {
       feed.setDescription(text);
+    } else if (tag.equals(TTL_TAG) && FEED_TAG.equals(getParentTag())) {
+      feed.setTtl(parsePositive(text, 0));
+    } else if (tag.equals(UPDATE_PERIOD_TAG) && FEED_TAG.equals(getParentTag())) {
+      feed.setUpdatePeriod(text.trim());
+    } else if (tag.equals(UPDATE_FREQUENCY_TAG)
+        && FEED_TAG.equals(getParentTag())) {
+      feed.setUpdateFrequency(parsePositive(text, 1));
+    }
+  }
+
+  private static int parsePositive(String text, int fallback) {
+    try {
+      int value = Integer.parseInt(text.trim());
+      return value > 0 ? value : fallback;
+    } catch (NumberFormatException e) {
+      return fallback;
     }
   }
 }
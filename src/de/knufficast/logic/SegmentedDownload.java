@@ -0,0 +1,382 @@
+/*******************************************************************************
+ * Copyright 2012 Crazywater
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.knufficast.logic;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import de.knufficast.util.BufferPool;
+import de.knufficast.util.HttpTransport;
+
+/**
+ * Downloads a file over several connections at once, each fetching one byte
+ * range and writing it in place. Which parts are done is kept in a file next
+ * to the download, so that an interrupted download continues where each of
+ * its segments stopped. Only for servers that accept ranges.
+ * 
+ * @author crazywater
+ * 
+ */
+public class SegmentedDownload {
+  // below this, the extra connections aren't worth it
+  public static final long MIN_LENGTH = 4 * 1024 * 1024;
+  // at most this many connections leave one of the host's slots to others
+  private static final int SEGMENTS = HttpTransport.MAX_PER_HOST - 1;
+  private static final String STATE_SUFFIX = ".segments";
+  private static final int STATE_VERSION = 1;
+  // how much a segment downloads between saving the state
+  private static final long SAVE_EVERY = 2 * 1024 * 1024;
+
+  private final File file;
+  private final URL url;
+  private final long length;
+  private final String validator;
+  private final long[] starts;
+  private final long[] ends;
+  private final long[] done;
+  private volatile boolean stopped = false;
+
+  /**
+   * Gets told about the progress and asked whether to go on. Called from the
+   * segments' threads.
+   */
+  public interface Listener {
+    void onProgress(long downloaded, long length);
+
+    boolean isCancelled();
+  }
+
+  private SegmentedDownload(File file, URL url, long length, String validator,
+      long[] starts, long[] ends, long[] done) {
+    this.file = file;
+    this.url = url;
+    this.length = length;
+    this.validator = validator;
+    this.starts = starts;
+    this.ends = ends;
+    this.done = done;
+  }
+
+  /**
+   * Starts a new segmented download of the URL into the file.
+   * 
+   * @param validator
+   *          the strong ETag or the Last-Modified date of the response, so
+   *          that the segments only accept the same version of the file; ""
+   *          if there is none
+   */
+  public static SegmentedDownload start(URL url, File file, long length,
+      String validator) throws IOException {
+    long[] starts = new long[SEGMENTS];
+    long[] ends = new long[SEGMENTS];
+    for (int i = 0; i < SEGMENTS; i++) {
+      starts[i] = length * i / SEGMENTS;
+      ends[i] = length * (i + 1) / SEGMENTS;
+    }
+    RandomAccessFile out = new RandomAccessFile(file, "rw");
+    try {
+      out.setLength(length);
+    } finally {
+      out.close();
+    }
+    SegmentedDownload download = new SegmentedDownload(file, url, length,
+        validator, starts, ends, new long[SEGMENTS]);
+    download.save();
+    return download;
+  }
+
+  /**
+   * Returns the interrupted segmented download into the file, or null if
+   * there is none.
+   */
+  public static SegmentedDownload resume(File file) {
+    File state = getStateFile(file);
+    if (!state.exists()) {
+      return null;
+    }
+    try {
+      DataInputStream in = new DataInputStream(new FileInputStream(state));
+      try {
+        if (in.readInt() != STATE_VERSION) {
+          throw new IOException("Unknown segment state version");
+        }
+        URL url = new URL(in.readUTF());
+        long length = in.readLong();
+        if (file.length() != length) {
+          throw new IOException("Download no longer matches its segments");
+        }
+        String validator = in.readUTF();
+        int segments = in.readInt();
+        long[] starts = new long[segments];
+        long[] ends = new long[segments];
+        long[] done = new long[segments];
+        for (int i = 0; i < segments; i++) {
+          starts[i] = in.readLong();
+          ends[i] = in.readLong();
+          done[i] = in.readLong();
+        }
+        return new SegmentedDownload(file, url, length, validator, starts,
+            ends, done);
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      // without the state, the preallocated file is useless
+      state.delete();
+      file.delete();
+      return null;
+    }
+  }
+
+  /**
+   * Deletes what is known about an interrupted segmented download into the
+   * file.
+   */
+  public static void deleteState(File file) {
+    getStateFile(file).delete();
+  }
+
+  /**
+   * Downloads the missing parts of the segments, at the same time as far as
+   * the host has free slots and one after the other otherwise. Returns
+   * normally when the download is complete or was cancelled; in both cases
+   * the state is saved.
+   * 
+   * @throws IOException
+   *           if a segment failed. If the server stopped honouring ranges,
+   *           the download is discarded, so that the next attempt starts over
+   *           with a single connection.
+   */
+  public void run(final Listener listener) throws IOException {
+    RandomAccessFile out = new RandomAccessFile(file, "rw");
+    final FileChannel channel = out.getChannel();
+    final Queue<Integer> queue = new ConcurrentLinkedQueue<Integer>();
+    for (int i = 0; i < starts.length; i++) {
+      if (getDone(i) < ends[i] - starts[i]) {
+        queue.add(i);
+      }
+    }
+    int missing = queue.size();
+    ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, missing));
+    try {
+      List<Future<Void>> workers = new ArrayList<Future<Void>>();
+      for (int i = 0; i < missing; i++) {
+        workers.add(pool.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws IOException {
+            fetchWhileFree(queue, channel, listener);
+            return null;
+          }
+        }));
+      }
+      for (Future<Void> worker : workers) {
+        worker.get();
+      }
+      // what didn't get a free slot is fetched like any other download
+      Integer segment;
+      while (!stopped && !listener.isCancelled()
+          && (segment = queue.poll()) != null) {
+        fetch(segment, HttpTransport.get().open(url), channel, listener);
+      }
+    } catch (InterruptedException e) {
+      stopped = true;
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      stopped = true;
+      if (e.getCause() instanceof IOException) {
+        throw discardIfRangeIgnored((IOException) e.getCause(), pool, out);
+      }
+      throw new IOException(String.valueOf(e.getCause()));
+    } catch (IOException e) {
+      stopped = true;
+      throw discardIfRangeIgnored(e, pool, out);
+    } finally {
+      stopped = true;
+      pool.shutdownNow();
+      if (channel.isOpen()) {
+        save(channel);
+        out.close();
+      }
+    }
+    if (getDownloaded() == length) {
+      deleteState(file);
+    }
+  }
+
+  /**
+   * If the server stopped honouring ranges, throws the download away, so that
+   * the next attempt starts over with a single connection. Returns the
+   * exception to rethrow.
+   */
+  private IOException discardIfRangeIgnored(IOException e,
+      ExecutorService pool, RandomAccessFile out) throws IOException {
+    if (e instanceof RangeIgnoredException) {
+      pool.shutdownNow();
+      out.close();
+      deleteState(file);
+      file.delete();
+    }
+    return e;
+  }
+
+  /**
+   * Fetches segments from the queue as long as the host has a slot to spare.
+   * A segment that doesn't get one is put back.
+   */
+  private void fetchWhileFree(Queue<Integer> queue, FileChannel channel,
+      Listener listener) throws IOException {
+    Integer segment;
+    while (!stopped && !listener.isCancelled()
+        && (segment = queue.poll()) != null) {
+      HttpTransport.Exchange exchange = HttpTransport.get().tryOpen(url);
+      if (exchange == null) {
+        queue.add(segment);
+        return;
+      }
+      fetch(segment, exchange, channel, listener);
+    }
+  }
+
+  /**
+   * Fetches the rest of the segment over the exchange and closes it.
+   */
+  private void fetch(int segment, HttpTransport.Exchange exchange,
+      FileChannel channel, Listener listener) throws IOException {
+    long position = starts[segment] + getDone(segment);
+    long end = ends[segment];
+    try {
+      HttpURLConnection connection = exchange.getConnection();
+      connection.setRequestProperty("Range", "bytes=" + position + "-"
+          + (end - 1));
+      if (!"".equals(validator)) {
+        connection.setRequestProperty("If-Range", validator);
+      }
+      if (exchange.connect() != HttpURLConnection.HTTP_PARTIAL) {
+        throw new RangeIgnoredException();
+      }
+      InputStream in = exchange.getInputStream();
+      ByteBuffer buffer = BufferPool.acquire();
+      try {
+        long unsaved = 0;
+        while (position < end && !stopped && !listener.isCancelled()) {
+          int read = BufferPool.read(in, buffer, end - position);
+          if (read < 0) {
+            throw new EOFException("Segment ended early");
+          }
+          while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+          }
+          listener.onProgress(addDone(segment, read), length);
+          unsaved += read;
+          if (unsaved >= SAVE_EVERY) {
+            save(channel);
+            unsaved = 0;
+          }
+        }
+      } finally {
+        BufferPool.release(buffer);
+      }
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private synchronized long getDone(int segment) {
+    return done[segment];
+  }
+
+  /**
+   * Returns the total downloaded afterwards.
+   */
+  private synchronized long addDone(int segment, long bytes) {
+    done[segment] += bytes;
+    return getDownloaded();
+  }
+
+  private synchronized long getDownloaded() {
+    long downloaded = 0;
+    for (long segmentDone : done) {
+      downloaded += segmentDone;
+    }
+    return downloaded;
+  }
+
+  /**
+   * Makes sure the data is on disk before the state says so.
+   */
+  private void save(FileChannel channel) throws IOException {
+    channel.force(false);
+    save();
+  }
+
+  private synchronized void save() throws IOException {
+    File state = getStateFile(file);
+    File temp = new File(state.getPath() + ".tmp");
+    DataOutputStream out = new DataOutputStream(new FileOutputStream(temp));
+    try {
+      out.writeInt(STATE_VERSION);
+      out.writeUTF(url.toString());
+      out.writeLong(length);
+      out.writeUTF(validator);
+      out.writeInt(starts.length);
+      for (int i = 0; i < starts.length; i++) {
+        out.writeLong(starts[i]);
+        out.writeLong(ends[i]);
+        out.writeLong(done[i]);
+      }
+    } finally {
+      out.close();
+    }
+    if (!temp.renameTo(state)) {
+      throw new IOException("Could not save segment state");
+    }
+  }
+
+  private static File getStateFile(File file) {
+    return new File(file.getPath() + STATE_SUFFIX);
+  }
+
+  /**
+   * The server answered a range request with the whole file or an error.
+   */
+  private static class RangeIgnoredException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    RangeIgnoredException() {
+      super("Server ignored the range");
+    }
+  }
+}
@@ -20,15 +20,28 @@ import java.io.InputStream;
 import java.io.Reader;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Stack;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlPullParserFactory;
 
+/**
+ * Base class for the pull-parsing of XML documents. Reports opening tags,
+ * closing tags and text to subclasses, with tag names in lower case. Tag names
+ * are interned in a per-parser symbol table, so the same tag is always the
+ * same String and reporting a tag allocates nothing once it has been seen.
+ * 
+ * @author crazywater
+ * 
+ */
 public abstract class XmlParser {
   private String encoding;
-  private Stack<String> currentTags;
+  // raw tag name -> interned lower-case name
+  private final Map<String, String> symbols = new HashMap<String, String>();
+  private final Attributes attributes = new Attributes();
+  private String[] currentTags = new String[16];
+  private int depth;
+  private boolean stopped;
 
   /**
    * Parses an XML input. Resulting feeds can be retrieved with
@@ -68,31 +81,27 @@ public abstract class XmlParser {
   
   private void doParse(XmlPullParser xpp) throws XmlPullParserException,
       IOException {
-    currentTags = new Stack<String>();
+    depth = 0;
+    stopped = false;
+    attributes.setParser(xpp);
     int eventType = xpp.getEventType();
     try {
       encoding = xpp.getInputEncoding();
-      while (eventType != XmlPullParser.END_DOCUMENT) {
+      while (eventType != XmlPullParser.END_DOCUMENT && !stopped) {
         if (eventType == XmlPullParser.START_TAG) {
-          Map<String, String> attributes = new HashMap<String, String>();
-          for (int i = 0; i < xpp.getAttributeCount(); i++) {
-            attributes.put(xpp.getAttributeName(i).toLowerCase(),
-                xpp.getAttributeValue(i));
-          }
-          String tagName = xpp.getName().toLowerCase();
-          onOpenTag(tagName);
+          String tagName = symbol(xpp.getName());
+          push(tagName);
           openTag(tagName, attributes);
         } else if (eventType == XmlPullParser.END_TAG) {
-          String expected = currentTags.peek();
-          String got = xpp.getName().toLowerCase();
-          if (!expected.equals(got)) {
+          String got = symbol(xpp.getName());
+          if (depth == 0 || currentTags[depth - 1] != got) {
             throw new XmlPullParserException("Malformed XML: Closing tag "
-                + got + ", expected closing " + expected);
+                + got + ", expected closing "
+                + (depth == 0 ? "nothing" : currentTags[depth - 1]));
           }
-          onCloseTag(got);
+          depth--;
           closeTag(got);
-        } else if (eventType == XmlPullParser.TEXT) {
-          onTagText(xpp.getText());
+        } else if (eventType == XmlPullParser.TEXT && depth > 0) {
           tagText(xpp.getText());
         }
         eventType = xpp.next();
@@ -100,39 +109,62 @@ public abstract class XmlParser {
     } catch (NullPointerException e) {
       e.printStackTrace();
       throw new XmlPullParserException("Malformed XML: " + e.getMessage());
+    } finally {
+      attributes.setParser(null);
     }
   }
 
-  protected String getEncoding() {
-    return encoding;
+  /**
+   * Returns the interned lower-case version of a tag name.
+   */
+  private String symbol(String name) {
+    String symbol = symbols.get(name);
+    if (symbol == null) {
+      symbol = name.toLowerCase().intern();
+      symbols.put(name, symbol);
+    }
+    return symbol;
   }
 
-  protected abstract void openTag(String tag, Map<String, String> attributes);
-
-  protected abstract void closeTag(String tag);
-
-  protected abstract void tagText(String text);
+  private void push(String tag) {
+    if (depth == currentTags.length) {
+      String[] grown = new String[depth * 2];
+      System.arraycopy(currentTags, 0, grown, 0, depth);
+      currentTags = grown;
+    }
+    currentTags[depth++] = tag;
+  }
 
-  private void onOpenTag(String tag) {
-    currentTags.push(tag);
+  /**
+   * Makes the parser return after the current callback without reading the
+   * rest of the input.
+   */
+  protected void stop() {
+    stopped = true;
   }
 
-  private void onCloseTag(String tag) {
-    currentTags.pop();
+  protected String getEncoding() {
+    return encoding;
   }
 
-  private void onTagText(String text) {
+  protected abstract void openTag(String tag, Attributes attributes);
 
-  }
+  protected abstract void closeTag(String tag);
 
+  protected abstract void tagText(String text);
+
+  /**
+   * Returns the innermost open tag. During {@link #closeTag}, that is the
+   * parent of the tag being closed.
+   */
   protected String getCurrentTag() {
-    return currentTags.peek();
+    return depth == 0 ? null : currentTags[depth - 1];
   }
 
+  /**
+   * Returns the tag enclosing the current tag, or null at the top level.
+   */
   protected String getParentTag() {
-    String current = currentTags.pop();
-    String parent = currentTags.peek();
-    currentTags.push(current);
-    return parent;
+    return depth < 2 ? null : currentTags[depth - 2];
   }
 }
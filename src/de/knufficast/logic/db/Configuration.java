@@ -31,6 +31,7 @@ import de.knufficast.watchers.UpdaterService;
  * @author crazywater
  */
 public class Configuration {
+  public static final int DEFAULT_DOWNLOAD_CONCURRENCY = 2;
   private static final String LAST_UPDATE_KEY = "lastUpdated";
   private FlattrConfiguration flattrConfig;
 
@@ -39,9 +40,10 @@ public class Configuration {
    */
   public List<DBFeed> getAllFeeds() {
     List<Long> ids = App.get().getDB().getIds(SQLiteHelper.TABLE_FEEDS);
+    App.get().getDB().prefetch(SQLiteHelper.TABLE_FEEDS, ids);
     List<DBFeed> result = new ArrayList<DBFeed>();
     for (Long id : ids) {
-      result.add(new DBFeed(id));
+      result.add(App.get().getDB().getFeed(id));
     }
     return result;
   }
@@ -144,6 +146,23 @@ public class Configuration {
     return getSharedPreferences().getBoolean("pref_key_auto_retry", true);
   }
 
+  /**
+   * How many episodes are downloaded at the same time.
+   */
+  public int getDownloadConcurrency() {
+    return Integer.parseInt(getSharedPreferences().getString(
+        "pref_key_download_concurrency",
+        String.valueOf(DEFAULT_DOWNLOAD_CONCURRENCY)));
+  }
+
+  /**
+   * Whether the database times its operations for the statistics dump.
+   */
+  public boolean recordDatabaseStats() {
+    return getSharedPreferences().getBoolean("pref_key_record_db_stats",
+        false);
+  }
+
   public boolean autoFlattr() {
     return getSharedPreferences().getBoolean("pref_key_auto_flattr", false);
   }
@@ -15,10 +15,18 @@
  ******************************************************************************/
 package de.knufficast.logic.db;
 
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.util.LruCache;
 import de.knufficast.App;
 import de.knufficast.events.EpisodeDownloadProgressEvent;
 import de.knufficast.events.EpisodeDownloadStateEvent;
 import de.knufficast.events.FlattrStateEvent;
+import de.knufficast.logic.DownloadProgress;
+import de.knufficast.logic.xml.HtmlSanitizer;
 
 /**
  * An entry in a {@link DBFeed}. This doesn't necessarily mean that there is an
@@ -31,32 +39,67 @@ public class DBEpisode {
   private static final String TABLE = SQLiteHelper.TABLE_EPISODES;
 
   /**
-   * Which download state this episode is currently in.
+   * Which download state this episode is currently in. Stored by ordinal, so
+   * new states may only be appended.
    */
   public enum DownloadState {
     DOWNLOADING, ERROR, FINISHED, NONE, PAUSED
   }
 
   /**
-   * Which state of flattring the episode is currently in.
+   * Which state of flattring the episode is currently in. Stored by ordinal, so
+   * new states may only be appended.
    */
   public enum FlattrState {
     ENQUEUED, ERROR, FLATTRED, NONE
   }
 
   /**
-   * Which state of playing the episode is currently in.
+   * Which state of playing the episode is currently in. Stored by ordinal, so
+   * new states may only be appended.
    */
   public enum PlayState {
     FINISHED, NONE, STARTED_PLAYING
   }
 
-  private Database db;
+  // values() copies the array on every call
+  private static final DownloadState[] DOWNLOAD_STATES = DownloadState.values();
+  private static final FlattrState[] FLATTR_STATES = FlattrState.values();
+  private static final PlayState[] PLAY_STATES = PlayState.values();
+
+  private static final HtmlSanitizer SANITIZER = new HtmlSanitizer();
+  // sanitized content by episode id, bounded by the total number of chars
+  private static final int CONTENT_CACHE_CHARS = 512 * 1024;
+  private static final LruCache<Long, String> contentCache = new LruCache<Long, String>(
+      CONTENT_CACHE_CHARS) {
+    @Override
+    protected int sizeOf(Long id, String content) {
+      return content.length();
+    }
+  };
+  // stores freshly sanitized content off the caller's thread
+  private static final ExecutorService contentWriter = Executors
+      .newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "DBEpisode content writer");
+          thread.setDaemon(true);
+          thread.setPriority(Thread.MIN_PRIORITY);
+          return thread;
+        }
+      });
+
+  private final Database db;
   private final long id;
+  // an episode never moves to another feed
+  private DBFeed feed;
 
-  public DBEpisode(long id) {
+  /**
+   * Use {@link Database#getEpisode} to get the canonical instance.
+   */
+  DBEpisode(Database db, long id) {
+    this.db = db;
     this.id = id;
-    db = App.get().getDB();
   }
 
   @Override
@@ -92,13 +135,16 @@ public class DBEpisode {
    * after starting a download.
    */
   public long getDownloadedBytes() {
-    String dbStr = db.get(TABLE, id, SQLiteHelper.C_EP_DOWNLOADED_BYTES);
-    return Long.valueOf(dbStr).longValue();
+    long live = App.get().getDownloadProgress().getDownloadedBytes(id);
+    if (live >= 0) {
+      return live;
+    }
+    return db.getLong(TABLE, id, SQLiteHelper.C_EP_DOWNLOADED_BYTES);
   }
 
   public DownloadState getDownloadState() {
-    String dbStr = db.get(TABLE, id, SQLiteHelper.C_EP_DOWNLOAD_STATE);
-    return DownloadState.valueOf(dbStr);
+    return DOWNLOAD_STATES[db.getInt(TABLE, id,
+        SQLiteHelper.C_EP_DOWNLOAD_STATE)];
   }
 
   /**
@@ -106,8 +152,7 @@ public class DBEpisode {
    * episode has never been prepared by the QueuePlayer.
    */
   public int getDuration() {
-    String dbStr = db.get(TABLE, id, SQLiteHelper.C_EP_DURATION);
-    return Integer.valueOf(dbStr).intValue();
+    return db.getInt(TABLE, id, SQLiteHelper.C_EP_DURATION);
   }
 
   public String getFileLocation() {
@@ -117,8 +162,7 @@ public class DBEpisode {
   }
 
   public FlattrState getFlattrState() {
-    String dbStr = db.get(TABLE, id, SQLiteHelper.C_EP_FLATTR_STATE);
-    return FlattrState.valueOf(dbStr);
+    return FLATTR_STATES[db.getInt(TABLE, id, SQLiteHelper.C_EP_FLATTR_STATE)];
   }
 
   public String getFlattrUrl() {
@@ -133,8 +177,58 @@ public class DBEpisode {
     return db.get(TABLE, id, SQLiteHelper.C_EP_GUID);
   }
 
+  /**
+   * The HTML content, reduced to harmless tags. Content is stored as it came
+   * from the feed and sanitized on first access, after which
+   * {@link #storeSanitizedContent} writes the result back in the background,
+   * so that this only happens once per episode.
+   */
   public String getContent() {
-    return db.get(TABLE, id, SQLiteHelper.C_EP_CONTENT);
+    String content = contentCache.get(id);
+    if (content != null) {
+      return content;
+    }
+    // the flag first: it is set after the sanitized content has been stored,
+    // so raw content is never taken for sanitized
+    boolean sanitized = db.getInt(TABLE, id,
+        SQLiteHelper.C_EP_CONTENT_SANITIZED) != 0;
+    content = db.get(TABLE, id, SQLiteHelper.C_EP_CONTENT);
+    if (!sanitized) {
+      content = SANITIZER.sanitize(content).getHtml();
+    }
+    contentCache.put(id, content);
+    if (!sanitized) {
+      contentWriter.execute(new Runnable() {
+        @Override
+        public void run() {
+          storeSanitizedContent();
+        }
+      });
+    }
+    return content;
+  }
+
+  /**
+   * Drops the cached content of a deleted episode.
+   */
+  static void forgetContent(long id) {
+    contentCache.remove(id);
+  }
+
+  /**
+   * Sanitizes the content if that hasn't happened yet and stores the result
+   * right away, bypassing the write queue: show notes can be large, and the
+   * raw content is still there if this is lost. Blocks on the database, so
+   * call it from a background thread.
+   */
+  public void storeSanitizedContent() {
+    if (db.getInt(TABLE, id, SQLiteHelper.C_EP_CONTENT_SANITIZED) != 0) {
+      return;
+    }
+    String[] columns = { SQLiteHelper.C_EP_CONTENT,
+        SQLiteHelper.C_EP_CONTENT_SANITIZED };
+    Object[] values = { getContent(), 1L };
+    db.putNow(TABLE, id, columns, values);
   }
 
   /**
@@ -145,8 +239,7 @@ public class DBEpisode {
   }
 
   public PlayState getPlayState() {
-    String dbStr = db.get(TABLE, id, SQLiteHelper.C_EP_PLAY_STATE);
-    return PlayState.valueOf(dbStr);
+    return PLAY_STATES[db.getInt(TABLE, id, SQLiteHelper.C_EP_PLAY_STATE)];
   }
 
   /**
@@ -156,8 +249,7 @@ public class DBEpisode {
    *          the location in milliseconds
    */
   public int getSeekLocation() {
-    String dbStr = db.get(TABLE, id, SQLiteHelper.C_EP_SEEK_LOCATION);
-    return Integer.valueOf(dbStr).intValue();
+    return db.getInt(TABLE, id, SQLiteHelper.C_EP_SEEK_LOCATION);
   }
 
   /**
@@ -172,8 +264,11 @@ public class DBEpisode {
    * after starting a download (0 otherwise).
    */
   public long getTotalBytes() {
-    String dbStr = db.get(TABLE, id, SQLiteHelper.C_EP_TOTAL_BYTES);
-    return Long.valueOf(dbStr).longValue();
+    long live = App.get().getDownloadProgress().getTotalBytes(id);
+    if (live >= 0) {
+      return live;
+    }
+    return db.getLong(TABLE, id, SQLiteHelper.C_EP_TOTAL_BYTES);
   }
 
   /**
@@ -199,8 +294,7 @@ public class DBEpisode {
    * queue.
    */
   public boolean isNew() {
-    String dbStr = db.get(TABLE, id, SQLiteHelper.C_EP_IS_NEW);
-    return dbStr == "1";
+    return db.getInt(TABLE, id, SQLiteHelper.C_EP_IS_NEW) != 0;
   }
 
   public void setDataUrl(String dataUrl) {
@@ -220,10 +314,18 @@ public class DBEpisode {
    *          total size of the episode download
    */
   public void setDownloadProgress(long downloadedBytes, long totalBytes) {
-    db.put(TABLE, id, SQLiteHelper.C_EP_DOWNLOADED_BYTES,
-        String.valueOf(downloadedBytes));
-    db.put(TABLE, id, SQLiteHelper.C_EP_TOTAL_BYTES, String.valueOf(totalBytes));
-    App.get().getEventBus().fireEvent(new EpisodeDownloadProgressEvent(id));
+    saveDownloadProgress(downloadedBytes, totalBytes);
+    App.get().getEventBus().fireEvent(
+        new EpisodeDownloadProgressEvent(Collections.singleton(id)));
+  }
+
+  /**
+   * Like {@link #setDownloadProgress}, but without firing an event. Used by
+   * {@link DownloadProgress}, which tells the listeners itself.
+   */
+  public void saveDownloadProgress(long downloadedBytes, long totalBytes) {
+    db.putLong(TABLE, id, SQLiteHelper.C_EP_DOWNLOADED_BYTES, downloadedBytes);
+    db.putLong(TABLE, id, SQLiteHelper.C_EP_TOTAL_BYTES, totalBytes);
   }
 
   /**
@@ -233,7 +335,8 @@ public class DBEpisode {
    * @param downloadState
    */
   public void setDownloadState(DownloadState downloadState) {
-    db.put(TABLE, id, SQLiteHelper.C_EP_DOWNLOAD_STATE, downloadState.name());
+    db.putLong(TABLE, id, SQLiteHelper.C_EP_DOWNLOAD_STATE,
+        downloadState.ordinal());
     App.get().getEventBus().fireEvent(new EpisodeDownloadStateEvent(id));
   }
 
@@ -241,11 +344,11 @@ public class DBEpisode {
    * Sets the duration of this episode in milliseconds.
    */
   public void setDuration(int duration) {
-    db.put(TABLE, id, SQLiteHelper.C_EP_DURATION, String.valueOf(duration));
+    db.putLong(TABLE, id, SQLiteHelper.C_EP_DURATION, duration);
   }
 
   public void setFlattrState(FlattrState flattrState) {
-    db.put(TABLE, id, SQLiteHelper.C_EP_FLATTR_STATE, flattrState.name());
+    db.putLong(TABLE, id, SQLiteHelper.C_EP_FLATTR_STATE, flattrState.ordinal());
     App.get().getEventBus().fireEvent(new FlattrStateEvent());
   }
 
@@ -262,11 +365,11 @@ public class DBEpisode {
   }
 
   public void setNew(boolean isNew) {
-    db.put(TABLE, id, SQLiteHelper.C_EP_IS_NEW, isNew ? "1" : "0");
+    db.putLong(TABLE, id, SQLiteHelper.C_EP_IS_NEW, isNew ? 1 : 0);
   }
 
   public void setPlayState(PlayState playState) {
-    db.put(TABLE, id, SQLiteHelper.C_EP_PLAY_STATE, playState.name());
+    db.putLong(TABLE, id, SQLiteHelper.C_EP_PLAY_STATE, playState.ordinal());
   }
 
   /**
@@ -276,15 +379,18 @@ public class DBEpisode {
    *          the location in milliseconds
    */
   public void setSeekLocation(int location) {
-    db.put(TABLE, id, SQLiteHelper.C_EP_SEEK_LOCATION, String.valueOf(location));
+    db.putLong(TABLE, id, SQLiteHelper.C_EP_SEEK_LOCATION, location);
   }
 
   public void setTitle(String title) {
     db.put(TABLE, id, SQLiteHelper.C_EP_TITLE, title);
   }
 
-  public DBFeed getFeed() {
-    long feedId = db.getLong(TABLE, id, SQLiteHelper.C_EP_FEED_ID);
-    return new DBFeed(feedId);
+  public synchronized DBFeed getFeed() {
+    if (feed == null) {
+      long feedId = db.getLong(TABLE, id, SQLiteHelper.C_EP_FEED_ID);
+      feed = db.getFeed(feedId);
+    }
+    return feed;
   }
 }
@@ -18,8 +18,6 @@ package de.knufficast.logic.db;
 import java.util.ArrayList;
 import java.util.List;
 
-import de.knufficast.App;
-
 /**
  * Representation of a Feed. Contains {@link DBEpisode}s.
  * 
@@ -32,9 +30,12 @@ public class DBFeed {
   private final long id;
   private final Database db;
 
-  public DBFeed(long id) {
+  /**
+   * Use {@link Database#getFeed} to get the canonical instance.
+   */
+  DBFeed(Database db, long id) {
     this.id = id;
-    db = App.get().getDB();
+    this.db = db;
   }
 
   public long getId() {
@@ -60,10 +61,10 @@ public class DBFeed {
    */
   public List<DBEpisode> getEpisodes() {
     List<DBEpisode> result = new ArrayList<DBEpisode>();
-    List<Long> children = db.query(EP_TABLE, SQLiteHelper.C_EP_FEED_ID,
-        String.valueOf(id));
+    List<Long> children = db.queryAndPrefetch(EP_TABLE,
+        SQLiteHelper.C_EP_FEED_ID, String.valueOf(id));
     for (Long id : children) {
-      result.add(new DBEpisode(id));
+      result.add(db.getEpisode(id));
     }
     return result;
   }
@@ -98,8 +99,7 @@ public class DBFeed {
    * header. Used to check if we need to refresh the feed.
    */
   public long getLastUpdated() {
-    String dbStr = db.get(TABLE, id, SQLiteHelper.C_FD_LAST_UPDATED);
-    return Long.valueOf(dbStr).longValue();
+    return db.getLong(TABLE, id, SQLiteHelper.C_FD_LAST_UPDATED);
   }
 
   /**
@@ -117,6 +117,19 @@ public class DBFeed {
     db.put(TABLE, id, SQLiteHelper.C_FD_ENCODING, encoding);
   }
 
+  /**
+   * Returns the SHA-1 of the last downloaded feed document, or "" if none is
+   * known. Used to notice unchanged feeds on servers that send neither an
+   * ETag nor a Last-Modified date.
+   */
+  public String getContentDigest() {
+    return db.get(TABLE, id, SQLiteHelper.C_FD_CONTENT_DIGEST);
+  }
+
+  public void setContentDigest(String digest) {
+    db.put(TABLE, id, SQLiteHelper.C_FD_CONTENT_DIGEST, digest);
+  }
+
   public void setETag(String eTag) {
     db.put(TABLE, id, SQLiteHelper.C_FD_ETAG, eTag);
   }
@@ -130,11 +143,67 @@ public class DBFeed {
   }
 
   public void setLastUpdated(long lastUpdated) {
-    db.put(TABLE, id, SQLiteHelper.C_FD_LAST_UPDATED,
-        String.valueOf(lastUpdated));
+    db.putLong(TABLE, id, SQLiteHelper.C_FD_LAST_UPDATED, lastUpdated);
   }
 
   public void setTitle(String title) {
     db.put(TABLE, id, SQLiteHelper.C_FD_TITLE, title);
   }
+
+  /**
+   * How long the feed asks clients to wait between refreshes in ms, 0 if it
+   * doesn't say.
+   */
+  public long getRefreshHint() {
+    return db.getLong(TABLE, id, SQLiteHelper.C_FD_REFRESH_HINT);
+  }
+
+  public void setRefreshHint(long refreshHint) {
+    db.putLong(TABLE, id, SQLiteHelper.C_FD_REFRESH_HINT, refreshHint);
+  }
+
+  /**
+   * The usual time between two new episodes in ms as observed while
+   * refreshing, 0 if not known yet.
+   */
+  public long getPublishInterval() {
+    return db.getLong(TABLE, id, SQLiteHelper.C_FD_PUBLISH_INTERVAL);
+  }
+
+  public void setPublishInterval(long publishInterval) {
+    db.putLong(TABLE, id, SQLiteHelper.C_FD_PUBLISH_INTERVAL, publishInterval);
+  }
+
+  /**
+   * When a refresh last found new episodes, in local UNIX time. 0 if never.
+   */
+  public long getLastNewEpisode() {
+    return db.getLong(TABLE, id, SQLiteHelper.C_FD_LAST_NEW_EPISODE);
+  }
+
+  public void setLastNewEpisode(long lastNewEpisode) {
+    db.putLong(TABLE, id, SQLiteHelper.C_FD_LAST_NEW_EPISODE, lastNewEpisode);
+  }
+
+  /**
+   * When the feed should be refreshed next, in local UNIX time.
+   */
+  public long getNextDue() {
+    return db.getLong(TABLE, id, SQLiteHelper.C_FD_NEXT_DUE);
+  }
+
+  public void setNextDue(long nextDue) {
+    db.putLong(TABLE, id, SQLiteHelper.C_FD_NEXT_DUE, nextDue);
+  }
+
+  /**
+   * How many refreshes in a row have failed since the last successful one.
+   */
+  public int getRefreshFailures() {
+    return db.getInt(TABLE, id, SQLiteHelper.C_FD_REFRESH_FAILURES);
+  }
+
+  public void setRefreshFailures(int refreshFailures) {
+    db.putLong(TABLE, id, SQLiteHelper.C_FD_REFRESH_FAILURES, refreshFailures);
+  }
 }
@@ -15,140 +15,689 @@
  ******************************************************************************/
 package de.knufficast.logic.db;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.SQLException;
+import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
+import de.knufficast.util.file.InternalFileUtil;
 
 /**
  * A connection to the Android-internal SQLite3 database. Caches writes so that
- * multiple writes only write the last result. Also caches reads, so multiple
- * reads don't go to the database.
+ * multiple writes only write the last result; cached writes are journaled
+ * (see {@link WriteJournal}) and flushed according to a {@link FlushPolicy}.
+ * Also caches reads: the commonly used columns of a row are read in one query
+ * and kept in an LRU {@link RowCache}, so multiple reads don't go to the
+ * database.
  * 
  * @author crazywater
  * 
  */
 public class Database {
-  private final Map<ColId, String> cache = new ConcurrentHashMap<ColId, String>();
+  private static final int EPISODE_CACHE_SIZE = 2048;
+  private static final int FEED_CACHE_SIZE = 256;
+  // keeps "_id in (...)" statements reasonably short
+  private static final int MAX_IDS_PER_QUERY = 500;
 
+  private final Map<String, RowCache> rowCaches = new HashMap<String, RowCache>();
+  // table -> column -> compiled single-value select
+  private final Map<String, Map<String, SQLiteStatement>> selectStatements = new HashMap<String, Map<String, SQLiteStatement>>();
+  // SQL -> compiled bulk insert
+  private final Map<String, SQLiteStatement> insertStatements = new HashMap<String, SQLiteStatement>();
+
+  private final DatabaseStats stats = new DatabaseStats();
+  private final HandleMap<DBEpisode> episodes = new HandleMap<DBEpisode>() {
+    @Override
+    protected DBEpisode create(long id) {
+      return new DBEpisode(Database.this, id);
+    }
+  };
+  private final HandleMap<DBFeed> feeds = new HandleMap<DBFeed>() {
+    @Override
+    protected DBFeed create(long id) {
+      return new DBFeed(Database.this, id);
+    }
+  };
   private final SQLiteHelper dbHelper;
+  private final WriteJournal journal;
   private final DBUpdater dbUpdater;
   private SQLiteDatabase database;
+  // until the journal has been replayed, flushes must not rotate it away
+  private volatile boolean journalReplayed = false;
 
-  private class ColId {
-    ColId(String table, String column, long id) {
+  /**
+   * Identifies a row of a table.
+   */
+  private static class RowId {
+    RowId(String table, long id) {
       this.table = table;
-      this.column = column;
       this.id = id;
     }
 
-    String table;
-    String column;
-    long id;
+    final String table;
+    final long id;
 
     @Override
     public boolean equals(Object other) {
-      if (!(other instanceof ColId)) {
+      if (!(other instanceof RowId)) {
         return false;
       }
-      ColId c = (ColId) other;
-      return id == c.id && table.equals(c.table) && column.equals(c.column);
+      RowId r = (RowId) other;
+      return id == r.id && table.equals(r.table);
     }
 
     @Override
     public int hashCode() {
-      return table.hashCode() ^ column.hashCode() ^ Long.valueOf(id).hashCode();
+      return table.hashCode() ^ (int) (id ^ (id >>> 32));
     }
   }
 
   public Database(Context context) {
     dbHelper = new SQLiteHelper(context);
+    rowCaches.put(SQLiteHelper.TABLE_EPISODES, new RowCache(
+        SQLiteHelper.TABLE_EPISODES, SQLiteHelper.EP_ROW_COLUMNS,
+        SQLiteHelper.EP_INTEGER_COLUMNS, EPISODE_CACHE_SIZE));
+    rowCaches.put(SQLiteHelper.TABLE_FEEDS, new RowCache(
+        SQLiteHelper.TABLE_FEEDS, SQLiteHelper.FD_ROW_COLUMNS,
+        SQLiteHelper.FD_INTEGER_COLUMNS, FEED_CACHE_SIZE));
+    journal = new WriteJournal(new InternalFileUtil(context));
     dbUpdater = new DBUpdater();
     dbUpdater.start();
   }
 
   public void open() throws SQLException {
     database = dbHelper.getWritableDatabase();
+    if (replayJournal()) {
+      journal.clear();
+      journalReplayed = true;
+    }
+  }
+
+  /**
+   * Sets when pending writes are flushed to the database.
+   */
+  public void setFlushPolicy(FlushPolicy policy) {
+    dbUpdater.setPolicy(policy);
+  }
+
+  /**
+   * Asks the background writer to flush all pending writes now, e.g. because
+   * the app is about to go into the background. Doesn't block.
+   */
+  public void flush() {
+    dbUpdater.requestFlush();
+  }
+
+  /**
+   * Writes whatever the journal holds from the last run into the database.
+   * Those are writes that were accepted, but the process died before they
+   * were flushed. If that fails, the background writer tries again before
+   * its first flush.
+   * 
+   * @return whether the journal is in the database now
+   */
+  private boolean replayJournal() {
+    final int[] count = { 0 };
+    boolean replayed = false;
+    database.beginTransaction();
+    try {
+      journal.replay(new WriteJournal.Visitor() {
+        @Override
+        public void visit(String table, long id, String column, Object value) {
+          ContentValues cv = new ContentValues();
+          if (value instanceof Long) {
+            cv.put(column, (Long) value);
+          } else {
+            cv.put(column, (String) value);
+          }
+          String[] args = { String.valueOf(id) };
+          database.update(table, cv, SQLiteHelper.C_ID + " = ?", args);
+          count[0]++;
+        }
+      });
+      database.setTransactionSuccessful();
+      replayed = true;
+    } catch (SQLException e) {
+      Log.e("Database", "Could not replay journal", e);
+    } finally {
+      database.endTransaction();
+    }
+    if (replayed && count[0] > 0) {
+      Log.i("Database", "Replayed " + count[0] + " journaled writes");
+    }
+    return replayed;
   }
 
   public void close() {
+    synchronized (selectStatements) {
+      for (Map<String, SQLiteStatement> byColumn : selectStatements.values()) {
+        for (SQLiteStatement statement : byColumn.values()) {
+          statement.close();
+        }
+      }
+      selectStatements.clear();
+    }
+    synchronized (insertStatements) {
+      for (SQLiteStatement statement : insertStatements.values()) {
+        statement.close();
+      }
+      insertStatements.clear();
+    }
     dbHelper.close();
   }
 
+  /**
+   * Returns the episode with this ID. There is only ever one
+   * {@link DBEpisode} object per episode, so they can be compared by identity.
+   */
+  public DBEpisode getEpisode(long id) {
+    return episodes.get(id);
+  }
+
+  /**
+   * Returns the feed with this ID. There is only ever one {@link DBFeed}
+   * object per feed, so they can be compared by identity.
+   */
+  public DBFeed getFeed(long id) {
+    return feeds.get(id);
+  }
+
   /**
    * Gets all row ids from the table.
    */
   public List<Long> getIds(String table) {
-    String[] id = { SQLiteHelper.C_ID };
-    Cursor cursor = database.query(table, id, null, null, null, null,
-        SQLiteHelper.C_ID + " DESC");
-    return getAllIds(cursor);
+    long start = DatabaseStats.start();
+    try {
+      String[] id = { SQLiteHelper.C_ID };
+      Cursor cursor = database.query(table, id, null, null, null, null,
+          SQLiteHelper.C_ID + " DESC");
+      return getAllIds(cursor);
+    } finally {
+      stats.record("getIds", table, DatabaseStats.ALL_COLUMNS, start);
+    }
   }
 
   /**
    * Querys the database for rows which have column=value.
    */
   public List<Long> query(String table, String column, String value) {
-    String[] id = { SQLiteHelper.C_ID };
-    String[] values = { value };
-    Cursor cursor = database.query(table, id, column + " = ?", values, null,
-        null, SQLiteHelper.C_ID + " DESC");
-    return getAllIds(cursor);
+    long start = DatabaseStats.start();
+    try {
+      String[] id = { SQLiteHelper.C_ID };
+      String[] values = { value };
+      Cursor cursor = database.query(table, id, column + " = ?", values, null,
+          null, SQLiteHelper.C_ID + " DESC");
+      return getAllIds(cursor);
+    } finally {
+      stats.record("query", table, column, start);
+    }
+  }
+
+  /**
+   * Like {@link #query}, but also loads the cached columns of the matching
+   * rows in the same pass, so that reading them afterwards doesn't cost a
+   * query per row.
+   */
+  public List<Long> queryAndPrefetch(String table, String column,
+      String value) {
+    long start = DatabaseStats.start();
+    try {
+      RowCache rowCache = rowCaches.get(table);
+      if (rowCache == null) {
+        return query(table, column, value);
+      }
+      String[] values = { value };
+      return loadRows(rowCache, column + " = ?", values, SQLiteHelper.C_ID
+          + " DESC");
+    } finally {
+      stats.record("queryAndPrefetch", table, column, start);
+    }
+  }
+
+  /**
+   * Loads the cached columns of all given rows that aren't cached yet, in as
+   * few queries as possible.
+   */
+  public void prefetch(String table, Collection<Long> ids) {
+    long start = DatabaseStats.start();
+    try {
+      RowCache rowCache = rowCaches.get(table);
+      if (rowCache == null) {
+        return;
+      }
+      List<Long> missing = new ArrayList<Long>();
+      for (long id : ids) {
+        if (rowCache.peek(id) == null) {
+          missing.add(id);
+        }
+      }
+      for (int from = 0; from < missing.size(); from += MAX_IDS_PER_QUERY) {
+        List<Long> chunk = missing.subList(from,
+            Math.min(missing.size(), from + MAX_IDS_PER_QUERY));
+        loadRows(rowCache, idsIn(chunk), null, null);
+      }
+    } finally {
+      stats.record("prefetch", table, DatabaseStats.ALL_COLUMNS, start);
+    }
+  }
+
+  /**
+   * Reads some columns of all rows that match the selection in one pass. Writes
+   * that haven't been flushed yet are included, but note that the selection
+   * itself is evaluated by the database and doesn't see them.
+   * 
+   * @param selection
+   *          a WHERE clause without "where", may contain "?", or null for all
+   *          rows
+   * @param orderBy
+   *          an ORDER BY clause or null
+   */
+  public Projection project(String table, String[] columns, String selection,
+      String[] selectionArgs, String orderBy) {
+    long start = DatabaseStats.start();
+    try {
+      String[] queried = new String[columns.length + 1];
+      queried[0] = SQLiteHelper.C_ID;
+      System.arraycopy(columns, 0, queried, 1, columns.length);
+      boolean[] integer = new boolean[columns.length];
+      for (int i = 0; i < columns.length; i++) {
+        integer[i] = SQLiteHelper.isIntegerColumn(table, columns[i]);
+      }
+      Cursor cursor = database.query(table, queried, selection, selectionArgs,
+          null, null, orderBy);
+      Projection projection;
+      try {
+        projection = new Projection(columns, integer, cursor.getCount());
+        int row = 0;
+        while (cursor.moveToNext()) {
+          projection.setId(row, cursor.getLong(0));
+          for (int i = 0; i < columns.length; i++) {
+            if (integer[i]) {
+              projection.setLong(row, i, cursor.getLong(i + 1));
+            } else {
+              projection.setString(row, i, cursor.getString(i + 1));
+            }
+          }
+          row++;
+        }
+      } finally {
+        cursor.close();
+      }
+      dbUpdater.applyPending(table, projection);
+      return projection;
+    } finally {
+      stats.record("project", table, DatabaseStats.ALL_COLUMNS, start);
+    }
+  }
+
+  /**
+   * Reads some columns of the given rows in one pass. Rows that don't exist
+   * are left out.
+   */
+  public Projection project(String table, String[] columns, List<Long> ids) {
+    if (ids.size() <= MAX_IDS_PER_QUERY) {
+      return project(table, columns, idsIn(ids), null, null);
+    }
+    // too many for one statement: query all rows and pick
+    Projection all = project(table, columns, null, null, null);
+    boolean[] integer = new boolean[columns.length];
+    for (int i = 0; i < columns.length; i++) {
+      integer[i] = all.isInteger(i);
+    }
+    int size = 0;
+    for (long id : ids) {
+      if (all.positionOf(id) >= 0) {
+        size++;
+      }
+    }
+    Projection projection = new Projection(columns, integer, size);
+    int row = 0;
+    for (long id : ids) {
+      int from = all.positionOf(id);
+      if (from < 0) {
+        continue;
+      }
+      projection.setId(row, id);
+      for (int i = 0; i < columns.length; i++) {
+        if (integer[i]) {
+          projection.setLong(row, i, all.getLong(from, i));
+        } else {
+          projection.setString(row, i, all.getString(from, i));
+        }
+      }
+      row++;
+    }
+    return projection;
+  }
+
+  private static String idsIn(List<Long> ids) {
+    StringBuilder sb = new StringBuilder(SQLiteHelper.C_ID);
+    sb.append(" in (");
+    for (int i = 0; i < ids.size(); i++) {
+      if (i > 0) {
+        sb.append(',');
+      }
+      sb.append(ids.get(i).longValue());
+    }
+    return sb.append(')').toString();
   }
 
   public void delete(String table, long id) {
-    database.delete(table, SQLiteHelper.C_ID + " = " + id, null);
+    long start = DatabaseStats.start();
+    try {
+      String[] args = { String.valueOf(id) };
+      database.delete(table, SQLiteHelper.C_ID + " = ?", args);
+      RowCache rowCache = rowCaches.get(table);
+      if (rowCache != null) {
+        rowCache.remove(id);
+      }
+      if (SQLiteHelper.TABLE_EPISODES.equals(table)) {
+        episodes.remove(id);
+        DBEpisode.forgetContent(id);
+      } else if (SQLiteHelper.TABLE_FEEDS.equals(table)) {
+        feeds.remove(id);
+      }
+    } finally {
+      stats.record("delete", table, DatabaseStats.ALL_COLUMNS, start);
+    }
   }
 
   /**
-   * Gets a value from the database. Might be cached.
+   * Gets a text value from the database. Might be cached.
    */
   public String get(String table, long id, String column) {
-    String[] col = { column };
-    ColId key = new ColId(table, column, id);
-    if (cache.containsKey(key)) {
-      String result = cache.get(key);
-      return result;
-    }
-    Cursor cursor = database.query(table, col, SQLiteHelper.C_ID + " = " + id,
-        null, null, null, null);
-    if (cursor.getCount() != 1) {
-      Log.e("Database", "Weird number of results: Table " + table + ", id "
-          + id
-          + ", column " + column + ": results: " + cursor.getCount());
-      return "";
+    long start = DatabaseStats.start();
+    try {
+      RowCache rowCache = rowCaches.get(table);
+      int index = rowCache == null ? -1 : rowCache.indexOf(column);
+      if (index < 0) {
+        Object value = getUncached(table, id, column, false);
+        return value == null ? "" : value.toString();
+      }
+      Row row = getRow(rowCache, id);
+      if (row == null) {
+        return "";
+      }
+      if (rowCache.isInteger(index)) {
+        return String.valueOf(row.longs[index]);
+      }
+      return row.strings[index];
+    } finally {
+      stats.record("get", table, column, start);
     }
-    cursor.moveToFirst();
-    String result = cursor.getString(0);
-    cursor.close();
-    return result;
   }
 
   /**
-   * Returns a long value. Is only used for referencing rows of other tables.
+   * Gets an integer value from the database. Might be cached.
    */
   public long getLong(String table, long id, String column) {
-    String[] col = { column };
-    Cursor cursor = database.query(table, col, SQLiteHelper.C_ID + " = " + id,
-        null, null, null, null);
-    cursor.moveToFirst();
-    long result = cursor.getLong(0);
-    cursor.close();
-    return result;
+    long start = DatabaseStats.start();
+    try {
+      RowCache rowCache = rowCaches.get(table);
+      int index = rowCache == null ? -1 : rowCache.indexOf(column);
+      if (index < 0) {
+        Object value = getUncached(table, id, column, true);
+        return toLong(value);
+      }
+      Row row = getRow(rowCache, id);
+      if (row == null) {
+        return 0;
+      }
+      if (!rowCache.isInteger(index)) {
+        return toLong(row.strings[index]);
+      }
+      return row.longs[index];
+    } finally {
+      stats.record("getLong", table, column, start);
+    }
   }
 
   /**
-   * Set a value in the table.
+   * Gets an integer value from the database. Might be cached.
+   */
+  public int getInt(String table, long id, String column) {
+    return (int) getLong(table, id, column);
+  }
+
+  /**
+   * Returns the latency histograms of the database operations.
+   */
+  public DatabaseStats getStats() {
+    return stats;
+  }
+
+  /**
+   * Returns the number of values that have been written but not flushed yet.
+   */
+  public int getPendingWrites() {
+    return dbUpdater.getPendingCells();
+  }
+
+  /**
+   * Writes a human-readable report of the caches, the write queue and the
+   * latency histograms.
+   */
+  public void dumpStats(PrintWriter out) {
+    for (RowCache rowCache : rowCaches.values()) {
+      long hits = rowCache.getHits();
+      long misses = rowCache.getMisses();
+      long ratio = hits + misses == 0 ? 0 : 100 * hits / (hits + misses);
+      out.println("cache " + rowCache.getTable() + ": " + rowCache.size()
+          + " rows, " + hits + " hits, " + misses + " misses (" + ratio
+          + "% hits), " + rowCache.getEvictions() + " evictions");
+    }
+    FlushStats flushStats = getFlushStats();
+    out.println("pending writes: " + getPendingWrites());
+    out.println("flushes: " + flushStats.getFlushes() + ", "
+        + flushStats.getRows() + " rows, " + flushStats.getCells()
+        + " values, " + flushStats.getMillis() + " ms");
+    out.println();
+    stats.dump(out);
+  }
+
+  /**
+   * Returns the number of reads that were answered from the row caches.
+   */
+  public long getCacheHits() {
+    long hits = 0;
+    for (RowCache rowCache : rowCaches.values()) {
+      hits += rowCache.getHits();
+    }
+    return hits;
+  }
+
+  /**
+   * Returns the number of reads that had to load a row from the database.
+   */
+  public long getCacheMisses() {
+    long misses = 0;
+    for (RowCache rowCache : rowCaches.values()) {
+      misses += rowCache.getMisses();
+    }
+    return misses;
+  }
+
+  private Row getRow(RowCache rowCache, long id) {
+    Row row = rowCache.get(id);
+    if (row == null) {
+      row = loadRow(rowCache, id);
+    }
+    return row;
+  }
+
+  private static long toLong(Object value) {
+    if (value instanceof Long) {
+      return ((Long) value).longValue();
+    }
+    if (value == null || "".equals(value)) {
+      return 0;
+    }
+    return Long.parseLong(value.toString());
+  }
+
+  /**
+   * Reads a single value that is not part of the cached row. Writes that are
+   * still waiting for the {@link DBUpdater} take precedence. Returns null if
+   * the row doesn't exist.
+   */
+  private Object getUncached(String table, long id, String column,
+      boolean integer) {
+    long start = DatabaseStats.start();
+    try {
+      Object pending = dbUpdater.getPending(table, id, column);
+      if (pending != null) {
+        return pending;
+      }
+      SQLiteStatement statement = getSelectStatement(table, column);
+      // compiled statements can't be used by two threads at once
+      synchronized (statement) {
+        statement.bindLong(1, id);
+        try {
+          if (integer) {
+            return statement.simpleQueryForLong();
+          }
+          return statement.simpleQueryForString();
+        } catch (SQLiteDoneException e) {
+          Log.e("Database", "No such row: Table " + table + ", id " + id
+              + ", column " + column);
+          return null;
+        }
+      }
+    } finally {
+      stats.record("select", table, column, start);
+    }
+  }
+
+  /**
+   * Returns the compiled "select column from table where _id = ?" statement,
+   * so that the hot single-value reads don't parse SQL every time.
+   */
+  private SQLiteStatement getSelectStatement(String table, String column) {
+    synchronized (selectStatements) {
+      Map<String, SQLiteStatement> byColumn = selectStatements.get(table);
+      if (byColumn == null) {
+        byColumn = new HashMap<String, SQLiteStatement>();
+        selectStatements.put(table, byColumn);
+      }
+      SQLiteStatement statement = byColumn.get(column);
+      if (statement == null) {
+        statement = database.compileStatement("select " + column + " from "
+            + table + " where " + SQLiteHelper.C_ID + " = ?");
+        byColumn.put(column, statement);
+      }
+      return statement;
+    }
+  }
+
+  /**
+   * Loads all cached columns of a row in one query and puts the row into the
+   * cache. Returns null if the row doesn't exist.
+   */
+  private Row loadRow(RowCache rowCache, long id) {
+    long start = DatabaseStats.start();
+    try {
+      // hold the cache lock so a concurrent put can't slip in between the query
+      // and the insertion into the cache
+      synchronized (rowCache) {
+        Row row = rowCache.peek(id);
+        if (row != null) {
+          return row;
+        }
+        String table = rowCache.getTable();
+        String[] columns = rowCache.getColumns();
+        String[] args = { String.valueOf(id) };
+        Cursor cursor = database.query(table, columns, SQLiteHelper.C_ID
+            + " = ?", args, null, null, null);
+        try {
+          if (!cursor.moveToFirst()) {
+            Log.e("Database", "No such row: Table " + table + ", id " + id);
+            return null;
+          }
+          row = readRow(rowCache, cursor, 0);
+        } finally {
+          cursor.close();
+        }
+        // writes that haven't reached the database yet are newer
+        dbUpdater.applyPending(rowCache, id, row);
+        rowCache.put(id, row);
+        return row;
+      }
+    } finally {
+      stats.record("loadRow", rowCache.getTable(), DatabaseStats.ALL_COLUMNS,
+          start);
+    }
+  }
+
+  /**
+   * Reads the cached columns of a row from the current cursor position,
+   * starting at cursor column offset.
+   */
+  private Row readRow(RowCache rowCache, Cursor cursor, int offset) {
+    int length = rowCache.getColumns().length;
+    Row row = new Row(length);
+    for (int i = 0; i < length; i++) {
+      if (rowCache.isInteger(i)) {
+        row.longs[i] = cursor.getLong(offset + i);
+      } else {
+        row.strings[i] = cursor.getString(offset + i);
+      }
+    }
+    return row;
+  }
+
+  /**
+   * Runs a query whose first column is the row ID and whose other columns are
+   * the cached columns of the table, and puts every row that isn't cached yet
+   * into the cache. Returns the IDs in the order of the query.
+   */
+  private List<Long> loadRows(RowCache rowCache, String selection,
+      String[] selectionArgs, String orderBy) {
+    String[] cached = rowCache.getColumns();
+    String[] columns = new String[cached.length + 1];
+    columns[0] = SQLiteHelper.C_ID;
+    System.arraycopy(cached, 0, columns, 1, cached.length);
+    List<Long> ids = new ArrayList<Long>();
+    // same as in loadRow: no put may slip in between query and insertion
+    synchronized (rowCache) {
+      Cursor cursor = database.query(rowCache.getTable(), columns, selection,
+          selectionArgs, null, null, orderBy);
+      try {
+        // don't evict what we have just loaded
+        int room = rowCache.getCapacity() / 2;
+        while (cursor.moveToNext()) {
+          long id = cursor.getLong(0);
+          ids.add(id);
+          if (ids.size() <= room && rowCache.peek(id) == null) {
+            Row row = readRow(rowCache, cursor, 1);
+            dbUpdater.applyPending(rowCache, id, row);
+            rowCache.put(id, row);
+          }
+        }
+      } finally {
+        cursor.close();
+      }
+    }
+    return ids;
+  }
+
+  /**
+   * Set a text value in the table.
    * 
    * @param table
    *          the table
@@ -160,9 +709,96 @@ public class Database {
    *          the value
    */
   public void put(String table, long id, String column, String value) {
-    ColId colId = new ColId(table, column, id);
-    cache.put(colId, value);
-    dbUpdater.postUpdate(colId, value);
+    RowCache rowCache = rowCaches.get(table);
+    if (rowCache == null) {
+      dbUpdater.postUpdate(table, id, column, value);
+      return;
+    }
+    int index = rowCache.indexOf(column);
+    synchronized (rowCache) {
+      if (index >= 0) {
+        rowCache.set(id, index, value);
+      }
+      dbUpdater.postUpdate(table, id, column, value);
+    }
+  }
+
+  /**
+   * Set an integer value in the table.
+   * 
+   * @param table
+   *          the table
+   * @param id
+   *          the row ID
+   * @param column
+   *          the column name
+   * @param value
+   *          the value
+   */
+  public void putLong(String table, long id, String column, long value) {
+    RowCache rowCache = rowCaches.get(table);
+    if (rowCache == null) {
+      dbUpdater.postUpdate(table, id, column, value);
+      return;
+    }
+    int index = rowCache.indexOf(column);
+    synchronized (rowCache) {
+      if (index >= 0) {
+        rowCache.setLong(id, index, value);
+      }
+      dbUpdater.postUpdate(table, id, column, value);
+    }
+  }
+
+  /**
+   * Writes values of one row right away in a single UPDATE, bypassing the
+   * background writer and its journal. For large values that can be derived
+   * again if they are lost. Cached columns are updated after the database, in
+   * the given order. Blocks, so don't call it on the UI thread.
+   * 
+   * @param values
+   *          Longs or Strings, one per column
+   */
+  public void putNow(String table, long id, String[] columns, Object[] values) {
+    long start = DatabaseStats.start();
+    try {
+      ContentValues cv = new ContentValues();
+      for (int i = 0; i < columns.length; i++) {
+        if (values[i] instanceof Long) {
+          cv.put(columns[i], (Long) values[i]);
+        } else {
+          cv.put(columns[i], (String) values[i]);
+        }
+      }
+      String[] args = { String.valueOf(id) };
+      database.update(table, cv, SQLiteHelper.C_ID + " = ?", args);
+      RowCache rowCache = rowCaches.get(table);
+      if (rowCache == null) {
+        return;
+      }
+      synchronized (rowCache) {
+        for (int i = 0; i < columns.length; i++) {
+          int index = rowCache.indexOf(columns[i]);
+          if (index < 0) {
+            continue;
+          }
+          if (values[i] instanceof Long) {
+            rowCache.setLong(id, index, ((Long) values[i]).longValue());
+          } else {
+            rowCache.set(id, index, (String) values[i]);
+          }
+        }
+      }
+    } finally {
+      stats.record("putNow", table, DatabaseStats.ALL_COLUMNS, start);
+    }
+  }
+
+  /**
+   * Returns statistics about the writes done by the background updater.
+   */
+  public FlushStats getFlushStats() {
+    return dbUpdater.getStats();
   }
 
   /**
@@ -172,14 +808,122 @@ public class Database {
    */
   public long create(String table, Collection<String> columns,
       Iterable<String> values) {
+    long start = DatabaseStats.start();
+    try {
+      long id = database.insert(table, null, toContentValues(columns, values));
+      return id;
+    } finally {
+      stats.record("create", table, DatabaseStats.ALL_COLUMNS, start);
+    }
+  }
+
+  /**
+   * Creates a new row in the table, unless that would violate a unique index
+   * (e.g. an episode with the same GUID already exists in the feed).
+   * 
+   * @return the ID of the new row, or -1 if no row was created
+   */
+  public long createIfAbsent(String table, Collection<String> columns,
+      Iterable<String> values) {
+    long start = DatabaseStats.start();
+    try {
+      return database.insertWithOnConflict(table, null,
+          toContentValues(columns, values), SQLiteDatabase.CONFLICT_IGNORE);
+    } finally {
+      stats.record("createIfAbsent", table, DatabaseStats.ALL_COLUMNS, start);
+    }
+  }
+
+  /**
+   * Inserts many rows with one compiled "insert or ignore" statement. Rows
+   * that would violate a unique index are skipped. Values may be Longs or
+   * Strings; null is stored as "". Call inside {@link #beginTransaction} for
+   * speed.
+   * 
+   * @return the IDs of the new rows, -1 for rows that were skipped
+   */
+  public long[] createAllIfAbsent(String table, String[] columns,
+      List<Object[]> rows) {
+    long start = DatabaseStats.start();
+    try {
+      StringBuilder sql = new StringBuilder("insert or ignore into ");
+      sql.append(table).append(" (");
+      for (int i = 0; i < columns.length; i++) {
+        sql.append(i == 0 ? "" : ", ").append(columns[i]);
+      }
+      sql.append(") values (");
+      for (int i = 0; i < columns.length; i++) {
+        sql.append(i == 0 ? "?" : ", ?");
+      }
+      sql.append(')');
+      SQLiteStatement statement = getInsertStatement(sql.toString());
+      long[] ids = new long[rows.size()];
+      synchronized (statement) {
+        for (int r = 0; r < ids.length; r++) {
+          Object[] row = rows.get(r);
+          for (int i = 0; i < columns.length; i++) {
+            if (row[i] instanceof Long) {
+              statement.bindLong(i + 1, ((Long) row[i]).longValue());
+            } else {
+              statement.bindString(i + 1, row[i] == null ? ""
+                  : (String) row[i]);
+            }
+          }
+          ids[r] = statement.executeInsert();
+        }
+      }
+      return ids;
+    } finally {
+      stats.record("createAllIfAbsent", table, DatabaseStats.ALL_COLUMNS,
+          start);
+    }
+  }
+
+  private SQLiteStatement getInsertStatement(String sql) {
+    synchronized (insertStatements) {
+      SQLiteStatement statement = insertStatements.get(sql);
+      if (statement == null) {
+        statement = database.compileStatement(sql);
+        insertStatements.put(sql, statement);
+      }
+      return statement;
+    }
+  }
+
+  /**
+   * Starts a transaction on the calling thread, for writing many rows at
+   * once. Transactions may be nested. Writes through {@link #put} still go
+   * through the background writer.
+   */
+  public void beginTransaction() {
+    database.beginTransaction();
+  }
+
+  /**
+   * Marks the current transaction as successful, so that
+   * {@link #endTransaction} commits it.
+   */
+  public void setTransactionSuccessful() {
+    database.setTransactionSuccessful();
+  }
+
+  /**
+   * Ends the current transaction: commits it if it was marked successful,
+   * otherwise rolls it back.
+   */
+  public void endTransaction() {
+    database.endTransaction();
+  }
+
+  private ContentValues toContentValues(Collection<String> columns,
+      Iterable<String> values) {
     ContentValues cvs = new ContentValues();
     Iterator<String> it = values.iterator();
     for (String col : columns) {
       String val = it.next();
       cvs.put(col, val == null ? "" : val);
     }
-    long id = database.insert(table, null, cvs);
-    return id;
+    return cvs;
   }
 
   private List<Long> getAllIds(Cursor cursor) {
@@ -194,58 +938,458 @@ public class Database {
     return results;
   }
 
+  /**
+   * Statistics about the flushes of the background updater.
+   */
+  public static class FlushStats {
+    private long flushes;
+    private long rows;
+    private long cells;
+    private long millis;
+    private int lastRows;
+    private int lastCells;
+    private long lastMillis;
+
+    private FlushStats() {
+    }
+
+    private FlushStats(FlushStats other) {
+      flushes = other.flushes;
+      rows = other.rows;
+      cells = other.cells;
+      millis = other.millis;
+      lastRows = other.lastRows;
+      lastCells = other.lastCells;
+      lastMillis = other.lastMillis;
+    }
+
+    private void record(int rows, int cells, long millis) {
+      flushes++;
+      this.rows += rows;
+      this.cells += cells;
+      this.millis += millis;
+      lastRows = rows;
+      lastCells = cells;
+      lastMillis = millis;
+    }
+
+    /**
+     * Number of transactions that have been committed.
+     */
+    public long getFlushes() {
+      return flushes;
+    }
+
+    /**
+     * Number of UPDATE statements executed, one per row and flush.
+     */
+    public long getRows() {
+      return rows;
+    }
+
+    /**
+     * Number of values written. Higher than {@link #getRows} when several
+     * columns of a row are written together.
+     */
+    public long getCells() {
+      return cells;
+    }
+
+    /**
+     * Total time spent in flushes, in milliseconds.
+     */
+    public long getMillis() {
+      return millis;
+    }
+
+    public int getLastRows() {
+      return lastRows;
+    }
+
+    public int getLastCells() {
+      return lastCells;
+    }
+
+    public long getLastMillis() {
+      return lastMillis;
+    }
+  }
+
   /**
    * A simple updater thread that does writes to the database in the background.
    * "Batches up" writes to the same location, so that only the last write is
-   * executed. Writes are generally executed only after a time of WAIT_TIME.
+   * executed, and coalesces the writes to one row into a single UPDATE. All
+   * writes of a flush are done in one transaction; if that fails, row by row,
+   * dropping the rows that fail. Writes are generally executed when the
+   * {@link FlushPolicy} says so.
    */
   private class DBUpdater extends Thread {
-    private Map<ColId, String> toUpdate = new ConcurrentHashMap<ColId, String>();
-    private static final long WAIT_TIME = 10 * 1000; // 10s
-    private long lastWrite = 0;
+    private static final int MAX_STATEMENTS = 32;
+
+    // column -> value, sorted so that the same columns give the same SQL
+    private Map<RowId, SortedMap<String, Object>> pending = new HashMap<RowId, SortedMap<String, Object>>();
+    // what the current flush is writing; still visible to readers until commit
+    private Map<RowId, SortedMap<String, Object>> inFlight = new HashMap<RowId, SortedMap<String, Object>>();
+    // compiled UPDATE statements by SQL, only used from this thread
+    private final Map<String, SQLiteStatement> statements = new HashMap<String, SQLiteStatement>();
+    private final FlushStats flushStats = new FlushStats();
+    private FlushPolicy policy = FlushPolicy.DEFAULT;
+    private int pendingCells = 0;
+    private long firstPendingTime = 0;
+    private boolean flushRequested = false;
 
     @Override
     public void run() {
       while (true) {
+        boolean due = true;
         try {
-          synchronized (this) {
-            this.wait();
-          }
+          due = awaitWork();
         } catch (InterruptedException e) {
           e.printStackTrace();
         }
-        long diff = System.currentTimeMillis() - lastWrite;
-        if (diff < WAIT_TIME) {
-          try {
-            Thread.sleep(WAIT_TIME - diff);
-          } catch (InterruptedException e) {
-            e.printStackTrace();
+        // the journal is written here, not by the threads that put
+        journal.sync();
+        if (due) {
+          flush();
+        }
+      }
+    }
+
+    /**
+     * Blocks until the policy says that the pending writes are due, until a
+     * flush is requested explicitly, or until there are journal records to
+     * write.
+     * 
+     * @return whether to flush
+     */
+    private synchronized boolean awaitWork() throws InterruptedException {
+      while (true) {
+        if (pending.isEmpty()) {
+          flushRequested = false;
+          if (journal.hasBuffered()) {
+            return false;
           }
+          this.wait();
+          continue;
+        }
+        if (flushRequested || pendingCells >= policy.getMaxPendingCells()) {
+          return true;
+        }
+        long left = firstPendingTime + policy.getMaxAgeMillis()
+            - System.currentTimeMillis();
+        if (left <= 0) {
+          return true;
         }
-        lastWrite = System.currentTimeMillis();
-        while (!toUpdate.isEmpty()) {
-          Iterator<Entry<ColId, String>> it = toUpdate.entrySet().iterator();
-          while (it.hasNext()) {
-            Entry<ColId, String> entry = it.next();
-            ColId id = entry.getKey();
-            ContentValues cvs = new ContentValues();
-            cvs.put(id.column, entry.getValue());
-            database.update(id.table, cvs, SQLiteHelper.C_ID + " = " + id.id,
-                null);
-            it.remove();
+        if (journal.hasBuffered()) {
+          return false;
+        }
+        this.wait(left);
+      }
+    }
+
+    synchronized void setPolicy(FlushPolicy policy) {
+      this.policy = policy;
+      this.notify();
+    }
+
+    /**
+     * Makes the thread flush as soon as possible, without waiting for it.
+     */
+    synchronized void requestFlush() {
+      flushRequested = true;
+      this.notify();
+    }
+
+    /**
+     * Writes everything that is pending in one transaction.
+     */
+    private void flush() {
+      if (!journalReplayed && !retryReplay()) {
+        return;
+      }
+      synchronized (this) {
+        if (pending.isEmpty()) {
+          return;
+        }
+        inFlight = pending;
+        pending = new HashMap<RowId, SortedMap<String, Object>>();
+        pendingCells = 0;
+        flushRequested = false;
+        journal.rotate();
+      }
+      long start = System.currentTimeMillis();
+      long statsStart = DatabaseStats.start();
+      Map<RowId, SortedMap<String, Object>> unwritten = new HashMap<RowId, SortedMap<String, Object>>();
+      int cells;
+      try {
+        cells = writeBatch();
+      } catch (SQLException e) {
+        // one bad row must not hold back all the others
+        Log.w("Database", "Flush failed, retrying row by row", e);
+        cells = writeRowByRow(unwritten);
+      }
+      stats.record("flush", DatabaseStats.ALL_TABLES,
+          DatabaseStats.ALL_COLUMNS, statsStart);
+      long millis = System.currentTimeMillis() - start;
+      synchronized (this) {
+        if (unwritten.isEmpty()) {
+          journal.flushed();
+        } else {
+          // the rotated journal still has them, in case the retry never comes
+          requeue(unwritten);
+        }
+        flushStats.record(inFlight.size(), cells, millis);
+        inFlight = new HashMap<RowId, SortedMap<String, Object>>();
+      }
+    }
+
+    /**
+     * Replays the journal that couldn't be replayed when the database was
+     * opened. Its records have to be in the database before a flush may
+     * delete them. They now include the pending writes, which is harmless:
+     * the flush writes the same values again. If it fails again, the pending
+     * writes wait for the next attempt.
+     */
+    private boolean retryReplay() {
+      if (replayJournal()) {
+        journalReplayed = true;
+        return true;
+      }
+      synchronized (this) {
+        // retried after the usual delay, not right away
+        firstPendingTime = System.currentTimeMillis();
+        flushRequested = false;
+      }
+      return false;
+    }
+
+    /**
+     * Writes all rows of the flush in one transaction.
+     * 
+     * @return the number of values written
+     */
+    private int writeBatch() {
+      int cells = 0;
+      database.beginTransaction();
+      try {
+        for (Entry<RowId, SortedMap<String, Object>> entry : inFlight.entrySet()) {
+          cells += writeRow(entry.getKey(), entry.getValue());
+        }
+        database.setTransactionSuccessful();
+      } finally {
+        database.endTransaction();
+      }
+      return cells;
+    }
+
+    /**
+     * Writes the rows of the flush one by one, each in its own transaction.
+     * Rows that violate a constraint can never be written and are logged and
+     * dropped. Any other failure (disk full, database locked) stops the flush;
+     * that row and the ones not tried yet are put into unwritten.
+     * 
+     * @return the number of values written
+     */
+    private int writeRowByRow(Map<RowId, SortedMap<String, Object>> unwritten) {
+      int cells = 0;
+      for (Entry<RowId, SortedMap<String, Object>> entry : inFlight.entrySet()) {
+        RowId rowId = entry.getKey();
+        if (!unwritten.isEmpty()) {
+          unwritten.put(rowId, entry.getValue());
+          continue;
+        }
+        try {
+          cells += writeRow(rowId, entry.getValue());
+        } catch (SQLiteConstraintException e) {
+          Log.e("Database", "Dropping write to " + rowId.table + " "
+              + rowId.id + " " + entry.getValue().keySet(), e);
+        } catch (SQLException e) {
+          Log.e("Database", "Flush failed, keeping the writes for later", e);
+          unwritten.put(rowId, entry.getValue());
+        }
+      }
+      return cells;
+    }
+
+    /**
+     * Puts writes that couldn't be flushed back into the pending ones. Must
+     * hold the lock. Values written since then win.
+     */
+    private void requeue(Map<RowId, SortedMap<String, Object>> unwritten) {
+      if (pending.isEmpty()) {
+        // retried after the usual delay, not right away
+        firstPendingTime = System.currentTimeMillis();
+      }
+      for (Entry<RowId, SortedMap<String, Object>> entry : unwritten.entrySet()) {
+        SortedMap<String, Object> values = pending.get(entry.getKey());
+        if (values == null) {
+          pending.put(entry.getKey(), entry.getValue());
+          pendingCells += entry.getValue().size();
+          continue;
+        }
+        for (Entry<String, Object> value : entry.getValue().entrySet()) {
+          if (!values.containsKey(value.getKey())) {
+            values.put(value.getKey(), value.getValue());
+            pendingCells++;
           }
         }
       }
     }
 
+    /**
+     * Writes the values of one row with a single UPDATE.
+     * 
+     * @return the number of values written
+     */
+    private int writeRow(RowId rowId, SortedMap<String, Object> values) {
+      SQLiteStatement statement = getStatement(rowId.table, values.keySet());
+      int index = 1;
+      for (Object value : values.values()) {
+        if (value instanceof Long) {
+          statement.bindLong(index++, ((Long) value).longValue());
+        } else {
+          statement.bindString(index++, (String) value);
+        }
+      }
+      statement.bindLong(index, rowId.id);
+      statement.executeUpdateDelete();
+      return values.size();
+    }
+
+    private SQLiteStatement getStatement(String table, Set<String> columns) {
+      StringBuilder sql = new StringBuilder("update ");
+      sql.append(table).append(" set ");
+      boolean first = true;
+      for (String column : columns) {
+        if (!first) {
+          sql.append(", ");
+        }
+        sql.append(column).append(" = ?");
+        first = false;
+      }
+      sql.append(" where ").append(SQLiteHelper.C_ID).append(" = ?");
+      String key = sql.toString();
+      SQLiteStatement statement = statements.get(key);
+      if (statement == null) {
+        if (statements.size() >= MAX_STATEMENTS) {
+          for (SQLiteStatement old : statements.values()) {
+            old.close();
+          }
+          statements.clear();
+        }
+        statement = database.compileStatement(key);
+        statements.put(key, statement);
+      }
+      statement.clearBindings();
+      return statement;
+    }
+
+    /**
+     * Returns the value of a write that hasn't been committed yet, or null.
+     */
+    synchronized Object getPending(String table, long id, String column) {
+      RowId rowId = new RowId(table, id);
+      SortedMap<String, Object> values = pending.get(rowId);
+      if (values != null && values.containsKey(column)) {
+        return values.get(column);
+      }
+      values = inFlight.get(rowId);
+      return values == null ? null : values.get(column);
+    }
+
+    /**
+     * Applies the writes that haven't been committed yet to a freshly loaded
+     * row.
+     */
+    synchronized void applyPending(RowCache rowCache, long id, Row row) {
+      RowId rowId = new RowId(rowCache.getTable(), id);
+      apply(inFlight.get(rowId), rowCache, row);
+      apply(pending.get(rowId), rowCache, row);
+    }
+
+    private void apply(Map<String, Object> values, RowCache rowCache, Row row) {
+      if (values == null) {
+        return;
+      }
+      for (Entry<String, Object> entry : values.entrySet()) {
+        int index = rowCache.indexOf(entry.getKey());
+        if (index < 0) {
+          continue;
+        }
+        Object value = entry.getValue();
+        if (value instanceof Long) {
+          row.longs[index] = ((Long) value).longValue();
+        } else {
+          row.strings[index] = (String) value;
+        }
+      }
+    }
+
+    /**
+     * Applies the writes that haven't been committed yet to a projection.
+     */
+    synchronized void applyPending(String table, Projection projection) {
+      apply(inFlight, table, projection);
+      apply(pending, table, projection);
+    }
+
+    private void apply(Map<RowId, SortedMap<String, Object>> rows,
+        String table, Projection projection) {
+      if (rows.isEmpty()) {
+        return;
+      }
+      String[] columns = projection.getColumns();
+      for (Entry<RowId, SortedMap<String, Object>> entry : rows.entrySet()) {
+        RowId rowId = entry.getKey();
+        if (!rowId.table.equals(table)) {
+          continue;
+        }
+        int row = projection.positionOf(rowId.id);
+        if (row < 0) {
+          continue;
+        }
+        for (int i = 0; i < columns.length; i++) {
+          Map<String, Object> values = entry.getValue();
+          if (!values.containsKey(columns[i])) {
+            continue;
+          }
+          Object value = values.get(columns[i]);
+          if (projection.isInteger(i)) {
+            projection.setLong(row, i, toLong(value));
+          } else {
+            projection.setString(row, i, value.toString());
+          }
+        }
+      }
+    }
+
+    synchronized int getPendingCells() {
+      return pendingCells;
+    }
+
+    synchronized FlushStats getStats() {
+      return new FlushStats(flushStats);
+    }
+
     /**
      * Request a database update from this thread.
      */
-    void postUpdate(ColId id, String value) {
-      toUpdate.put(id, value);
-      synchronized (this) {
-        this.notify();
+    synchronized void postUpdate(String table, long id, String column,
+        Object value) {
+      journal.append(table, id, column, value);
+      if (pending.isEmpty()) {
+        firstPendingTime = System.currentTimeMillis();
+      }
+      RowId rowId = new RowId(table, id);
+      SortedMap<String, Object> values = pending.get(rowId);
+      if (values == null) {
+        values = new TreeMap<String, Object>();
+        pending.put(rowId, values);
+      }
+      if (values.put(column, value) == null) {
+        pendingCells++;
       }
+      this.notify();
     }
   }
 }
@@ -0,0 +1,189 @@
+/*******************************************************************************
+ * Copyright 2012 Crazywater
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.knufficast.logic.db;
+
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import android.os.Looper;
+
+/**
+ * Latency histograms of the {@link Database} operations, one per (operation,
+ * table, column), together with how many calls were made on the main thread.
+ * Recording allocates nothing once a key has been seen. Off unless
+ * {@link #setEnabled enabled}, because it takes a lock on every read.
+ * 
+ * @author crazywater
+ * 
+ */
+public class DatabaseStats {
+  /**
+   * Column name for operations that don't concern a single column.
+   */
+  public static final String ALL_COLUMNS = "*";
+
+  /**
+   * Table name for operations that don't concern a single table.
+   */
+  public static final String ALL_TABLES = "*";
+
+  private static volatile boolean enabled = false;
+
+  // operation -> table -> column -> histogram
+  private final Map<String, Map<String, Map<String, Histogram>>> histograms = new HashMap<String, Map<String, Map<String, Histogram>>>();
+
+  /**
+   * A histogram of latencies with power-of-two buckets, starting at one
+   * microsecond.
+   */
+  public static class Histogram {
+    private static final int BUCKETS = 24; // up to ~8s
+
+    private final long[] buckets = new long[BUCKETS];
+    private long count;
+    private long mainThread;
+    private long totalNanos;
+    private long maxNanos;
+
+    private void record(long nanos, boolean onMainThread) {
+      long micros = nanos / 1000;
+      int bucket = 64 - Long.numberOfLeadingZeros(micros);
+      buckets[Math.min(bucket, BUCKETS - 1)]++;
+      count++;
+      if (onMainThread) {
+        mainThread++;
+      }
+      totalNanos += nanos;
+      maxNanos = Math.max(maxNanos, nanos);
+    }
+
+    public long getCount() {
+      return count;
+    }
+
+    public long getMainThreadCount() {
+      return mainThread;
+    }
+
+    public long getTotalNanos() {
+      return totalNanos;
+    }
+
+    public long getMaxNanos() {
+      return maxNanos;
+    }
+
+    /**
+     * Returns an upper bound of the given percentile in microseconds, with the
+     * precision of the buckets.
+     */
+    public long getPercentileMicros(double percentile) {
+      long wanted = (long) Math.ceil(count * percentile / 100);
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        seen += buckets[i];
+        if (seen >= wanted && seen > 0) {
+          return 1L << i;
+        }
+      }
+      return 1L << (BUCKETS - 1);
+    }
+  }
+
+  /**
+   * Turns recording on or off for all instances.
+   */
+  public static void setEnabled(boolean enabled) {
+    DatabaseStats.enabled = enabled;
+  }
+
+  public static boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Returns the current time, to be passed to {@link #record} later, or 0 if
+   * recording is off.
+   */
+  static long start() {
+    return enabled ? System.nanoTime() : 0;
+  }
+
+  /**
+   * Records an operation that began at start. Does nothing if recording is
+   * off, or was off at start.
+   */
+  void record(String operation, String table, String column, long start) {
+    if (start == 0 || !enabled) {
+      return;
+    }
+    recordEnabled(operation, table, column, start);
+  }
+
+  private synchronized void recordEnabled(String operation, String table,
+      String column, long start) {
+    long nanos = System.nanoTime() - start;
+    Map<String, Map<String, Histogram>> byTable = histograms.get(operation);
+    if (byTable == null) {
+      byTable = new HashMap<String, Map<String, Histogram>>();
+      histograms.put(operation, byTable);
+    }
+    Map<String, Histogram> byColumn = byTable.get(table);
+    if (byColumn == null) {
+      byColumn = new HashMap<String, Histogram>();
+      byTable.put(table, byColumn);
+    }
+    Histogram histogram = byColumn.get(column);
+    if (histogram == null) {
+      histogram = new Histogram();
+      byColumn.put(column, histogram);
+    }
+    histogram.record(nanos, Looper.myLooper() == Looper.getMainLooper());
+  }
+
+  /**
+   * Forgets everything recorded so far.
+   */
+  public synchronized void reset() {
+    histograms.clear();
+  }
+
+  /**
+   * Writes one line per (operation, table, column), sorted.
+   */
+  public synchronized void dump(PrintWriter out) {
+    out.println("operation table column: count (main thread) total_ms p50_us p90_us p99_us max_us");
+    for (Entry<String, Map<String, Map<String, Histogram>>> op : new TreeMap<String, Map<String, Map<String, Histogram>>>(
+        histograms).entrySet()) {
+      for (Entry<String, Map<String, Histogram>> table : new TreeMap<String, Map<String, Histogram>>(
+          op.getValue()).entrySet()) {
+        for (Entry<String, Histogram> column : new TreeMap<String, Histogram>(
+            table.getValue()).entrySet()) {
+          Histogram h = column.getValue();
+          out.println(op.getKey() + " " + table.getKey() + " "
+              + column.getKey() + ": " + h.getCount() + " ("
+              + h.getMainThreadCount() + ") " + h.getTotalNanos() / 1000000
+              + " " + h.getPercentileMicros(50) + " "
+              + h.getPercentileMicros(90) + " " + h.getPercentileMicros(99)
+              + " " + h.getMaxNanos() / 1000);
+        }
+      }
+    }
+  }
+}
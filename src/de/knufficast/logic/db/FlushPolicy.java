@@ -0,0 +1,51 @@
+/*******************************************************************************
+ * Copyright 2012 Crazywater
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.knufficast.logic.db;
+
+/**
+ * Decides when the background writer of the {@link Database} flushes. Pending
+ * writes are flushed when there are too many of them or when the oldest one is
+ * too old, whichever comes first. Since every write is journaled, both limits
+ * only trade memory and transaction count, not safety.
+ * 
+ * @author crazywater
+ * 
+ */
+public class FlushPolicy {
+  public static final FlushPolicy DEFAULT = new FlushPolicy(512, 30 * 1000);
+
+  private final int maxPendingCells;
+  private final long maxAgeMillis;
+
+  /**
+   * @param maxPendingCells
+   *          flush as soon as this many values are pending
+   * @param maxAgeMillis
+   *          flush at the latest this long after the first pending write
+   */
+  public FlushPolicy(int maxPendingCells, long maxAgeMillis) {
+    this.maxPendingCells = maxPendingCells;
+    this.maxAgeMillis = maxAgeMillis;
+  }
+
+  public int getMaxPendingCells() {
+    return maxPendingCells;
+  }
+
+  public long getMaxAgeMillis() {
+    return maxAgeMillis;
+  }
+}
@@ -0,0 +1,85 @@
+/*******************************************************************************
+ * Copyright 2012 Crazywater
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.knufficast.logic.db;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Hands out one canonical object per row ID, so that the same row is always
+ * represented by the same object as long as anybody holds on to it. Objects
+ * are only weakly referenced and are collected when they are no longer used.
+ * 
+ * @author crazywater
+ * 
+ * @param <T>
+ *          the type of the handles
+ */
+abstract class HandleMap<T> {
+  private final Map<Long, Handle<T>> handles = new HashMap<Long, Handle<T>>();
+  private final ReferenceQueue<T> collected = new ReferenceQueue<T>();
+
+  private static class Handle<T> extends WeakReference<T> {
+    private final long id;
+
+    Handle(long id, T referent, ReferenceQueue<T> queue) {
+      super(referent, queue);
+      this.id = id;
+    }
+  }
+
+  /**
+   * Creates the object for a row that has no live handle.
+   */
+  protected abstract T create(long id);
+
+  /**
+   * Returns the canonical object for the row ID, creating it if necessary.
+   */
+  synchronized T get(long id) {
+    expunge();
+    Handle<T> handle = handles.get(id);
+    T value = handle == null ? null : handle.get();
+    if (value == null) {
+      value = create(id);
+      handles.put(id, new Handle<T>(id, value, collected));
+    }
+    return value;
+  }
+
+  /**
+   * Forgets the handle of a deleted row.
+   */
+  synchronized void remove(long id) {
+    handles.remove(id);
+  }
+
+  /**
+   * Removes the entries whose objects have been collected.
+   */
+  @SuppressWarnings("unchecked")
+  private void expunge() {
+    Handle<T> handle;
+    while ((handle = (Handle<T>) collected.poll()) != null) {
+      // the ID may have got a new handle in the meantime
+      if (handles.get(handle.id) == handle) {
+        handles.remove(handle.id);
+      }
+    }
+  }
+}
@@ -0,0 +1,163 @@
+/*******************************************************************************
+ * Copyright 2012 Crazywater
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.knufficast.logic.db;
+
+/**
+ * A fixed-capacity map from row IDs to {@link Row}s. Uses open addressing with
+ * linear probing on primitive keys, so lookups don't box the ID and allocate
+ * nothing. When full, an entry is evicted with the CLOCK algorithm: entries
+ * that have been looked up since the hand last passed them get a second
+ * chance.
+ * 
+ * Not thread-safe.
+ * 
+ * @author crazywater
+ * 
+ */
+class LongRowMap {
+  private final int capacity;
+  private final int mask;
+  private final long[] keys;
+  private final Row[] values;
+  private final boolean[] referenced;
+  private int size = 0;
+  private int hand = 0;
+
+  LongRowMap(int capacity) {
+    this.capacity = capacity;
+    // keep the load factor at or below 1/2
+    int slots = Integer.highestOneBit(Math.max(capacity, 1)) * 4;
+    mask = slots - 1;
+    keys = new long[slots];
+    values = new Row[slots];
+    referenced = new boolean[slots];
+  }
+
+  /**
+   * Returns the row or null, and marks it as recently used.
+   */
+  Row get(long key) {
+    int slot = find(key);
+    if (slot < 0) {
+      return null;
+    }
+    referenced[slot] = true;
+    return values[slot];
+  }
+
+  /**
+   * Inserts or replaces a row.
+   * 
+   * @return whether another row had to be evicted to make room
+   */
+  boolean put(long key, Row value) {
+    int slot = find(key);
+    if (slot >= 0) {
+      values[slot] = value;
+      referenced[slot] = true;
+      return false;
+    }
+    boolean evicted = false;
+    if (size >= capacity) {
+      evict();
+      evicted = true;
+    }
+    slot = hash(key);
+    while (values[slot] != null) {
+      slot = (slot + 1) & mask;
+    }
+    keys[slot] = key;
+    values[slot] = value;
+    referenced[slot] = true;
+    size++;
+    return evicted;
+  }
+
+  void remove(long key) {
+    int slot = find(key);
+    if (slot >= 0) {
+      removeSlot(slot);
+    }
+  }
+
+  void clear() {
+    for (int i = 0; i < values.length; i++) {
+      values[i] = null;
+      referenced[i] = false;
+    }
+    size = 0;
+  }
+
+  int size() {
+    return size;
+  }
+
+  private int find(long key) {
+    int slot = hash(key);
+    while (values[slot] != null) {
+      if (keys[slot] == key) {
+        return slot;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return -1;
+  }
+
+  /**
+   * Advances the clock hand to the first entry that hasn't been used since the
+   * last round, and removes it.
+   */
+  private void evict() {
+    while (true) {
+      if (values[hand] != null) {
+        if (!referenced[hand]) {
+          removeSlot(hand);
+          return;
+        }
+        referenced[hand] = false;
+      }
+      hand = (hand + 1) & mask;
+    }
+  }
+
+  /**
+   * Removes an entry and shifts later entries of the same probe sequence back,
+   * so that lookups never need tombstones.
+   */
+  private void removeSlot(int slot) {
+    int free = slot;
+    int next = (slot + 1) & mask;
+    while (values[next] != null) {
+      int home = hash(keys[next]);
+      // move the entry if its home isn't cyclically in (free, next]
+      if (((next - home) & mask) >= ((next - free) & mask)) {
+        keys[free] = keys[next];
+        values[free] = values[next];
+        referenced[free] = referenced[next];
+        free = next;
+      }
+      next = (next + 1) & mask;
+    }
+    values[free] = null;
+    referenced[free] = false;
+    size--;
+  }
+
+  private int hash(long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32)) & mask;
+  }
+}
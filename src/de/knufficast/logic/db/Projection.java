@@ -0,0 +1,136 @@
+/*******************************************************************************
+ * Copyright 2012 Crazywater
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.knufficast.logic.db;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The result of {@link Database#project}: some columns of many rows, read in a
+ * single pass over one cursor. Stored column by column: the row IDs in one
+ * array and every column in a parallel array, either of longs or of strings.
+ * 
+ * @author crazywater
+ * 
+ */
+public class Projection {
+  private final String[] columns;
+  private final long[] ids;
+  private final long[][] longs;
+  private final String[][] strings;
+  private Map<Long, Integer> positions;
+
+  Projection(String[] columns, boolean[] integer, int size) {
+    this.columns = columns;
+    ids = new long[size];
+    longs = new long[columns.length][];
+    strings = new String[columns.length][];
+    for (int i = 0; i < columns.length; i++) {
+      if (integer[i]) {
+        longs[i] = new long[size];
+      } else {
+        strings[i] = new String[size];
+      }
+    }
+  }
+
+  /**
+   * The number of rows.
+   */
+  public int size() {
+    return ids.length;
+  }
+
+  /**
+   * The IDs of the rows, in the order of the query.
+   */
+  public long[] getIds() {
+    return ids;
+  }
+
+  /**
+   * The values of an integer column, parallel to {@link #getIds}.
+   */
+  public long[] getLongs(String column) {
+    long[] values = longs[indexOf(column)];
+    if (values == null) {
+      throw new IllegalArgumentException(column + " is not an integer column");
+    }
+    return values;
+  }
+
+  /**
+   * The values of a text column, parallel to {@link #getIds}.
+   */
+  public String[] getStrings(String column) {
+    String[] values = strings[indexOf(column)];
+    if (values == null) {
+      throw new IllegalArgumentException(column + " is not a text column");
+    }
+    return values;
+  }
+
+  int indexOf(String column) {
+    for (int i = 0; i < columns.length; i++) {
+      if (columns[i].equals(column)) {
+        return i;
+      }
+    }
+    throw new IllegalArgumentException(column + " is not part of the projection");
+  }
+
+  /**
+   * Returns the position of the row with this ID, or -1.
+   */
+  int positionOf(long id) {
+    if (positions == null) {
+      positions = new HashMap<Long, Integer>();
+      for (int i = 0; i < ids.length; i++) {
+        positions.put(ids[i], i);
+      }
+    }
+    Integer position = positions.get(id);
+    return position == null ? -1 : position.intValue();
+  }
+
+  String[] getColumns() {
+    return columns;
+  }
+
+  boolean isInteger(int column) {
+    return longs[column] != null;
+  }
+
+  void setId(int row, long id) {
+    ids[row] = id;
+  }
+
+  void setLong(int row, int column, long value) {
+    longs[column][row] = value;
+  }
+
+  void setString(int row, int column, String value) {
+    strings[column][row] = value;
+  }
+
+  long getLong(int row, int column) {
+    return longs[column][row];
+  }
+
+  String getString(int row, int column) {
+    return strings[column][row];
+  }
+}
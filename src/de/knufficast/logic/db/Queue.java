@@ -189,12 +189,15 @@ public class Queue {
    */
   public void fromString(String string) {
     queue.clear();
-    String[] ids = string.split(",");
-    for (String idStr : ids) {
+    List<Long> ids = new ArrayList<Long>();
+    for (String idStr : string.split(",")) {
       if (!"".equals(idStr)) {
-        long id = Long.valueOf(idStr).longValue();
-        queue.add(new DBEpisode(id));
+        ids.add(Long.valueOf(idStr));
       }
     }
+    App.get().getDB().prefetch(SQLiteHelper.TABLE_EPISODES, ids);
+    for (long id : ids) {
+      queue.add(App.get().getDB().getEpisode(id));
+    }
   }
 }
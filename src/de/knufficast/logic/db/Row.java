@@ -0,0 +1,34 @@
+/*******************************************************************************
+ * Copyright 2012 Crazywater
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.knufficast.logic.db;
+
+/**
+ * The cached values of one table row. Text columns live in {@link #strings},
+ * integer columns in {@link #longs}, both indexed by the position of the
+ * column in the {@link RowCache}. Slots of the other type are unused.
+ * 
+ * @author crazywater
+ * 
+ */
+final class Row {
+  final String[] strings;
+  final long[] longs;
+
+  Row(int columns) {
+    strings = new String[columns];
+    longs = new long[columns];
+  }
+}
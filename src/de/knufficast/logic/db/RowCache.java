@@ -0,0 +1,162 @@
+/*******************************************************************************
+ * Copyright 2012 Crazywater
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.knufficast.logic.db;
+
+import java.util.Set;
+
+/**
+ * A cache of the rows of one table, keyed by row ID. Each row holds the values
+ * of a fixed set of columns, so that a single query fills in everything a list
+ * item needs. Rows live in a {@link LongRowMap}, so that a hit allocates
+ * nothing. Also counts hits and misses.
+ * 
+ * @author crazywater
+ * 
+ */
+class RowCache {
+  private final String table;
+  private final String[] columns;
+  private final boolean[] integerColumns;
+  private final LongRowMap rows;
+  private final int capacity;
+
+  private long hits;
+  private long misses;
+  private long evictions;
+
+  RowCache(String table, String[] columns, Set<String> integerColumns,
+      int capacity) {
+    this.table = table;
+    this.columns = columns;
+    this.integerColumns = new boolean[columns.length];
+    for (int i = 0; i < columns.length; i++) {
+      this.integerColumns[i] = integerColumns.contains(columns[i]);
+    }
+    this.capacity = capacity;
+    rows = new LongRowMap(capacity);
+  }
+
+  int getCapacity() {
+    return capacity;
+  }
+
+  String getTable() {
+    return table;
+  }
+
+  /**
+   * The cached columns, in the order in which they appear in a row.
+   */
+  String[] getColumns() {
+    return columns;
+  }
+
+  /**
+   * Returns the position of the column in a row, or -1 if the column is not
+   * cached. Callers pass the constants of {@link SQLiteHelper}, which are
+   * interned, so comparing references finds them without hashing.
+   */
+  int indexOf(String column) {
+    for (int i = 0; i < columns.length; i++) {
+      if (columns[i] == column) {
+        return i;
+      }
+    }
+    for (int i = 0; i < columns.length; i++) {
+      if (columns[i].equals(column)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Whether the column at this position is stored in {@link Row#longs}.
+   */
+  boolean isInteger(int index) {
+    return integerColumns[index];
+  }
+
+  /**
+   * Returns the cached row or null. Counts as a hit or a miss.
+   */
+  synchronized Row get(long id) {
+    Row row = rows.get(id);
+    if (row == null) {
+      misses++;
+    } else {
+      hits++;
+    }
+    return row;
+  }
+
+  /**
+   * Returns the cached row or null without touching the counters.
+   */
+  synchronized Row peek(long id) {
+    return rows.get(id);
+  }
+
+  synchronized int size() {
+    return rows.size();
+  }
+
+  synchronized void put(long id, Row row) {
+    if (rows.put(id, row)) {
+      evictions++;
+    }
+  }
+
+  /**
+   * Updates a single text value of a row, if the row is cached.
+   */
+  synchronized void set(long id, int index, String value) {
+    Row row = rows.get(id);
+    if (row != null) {
+      row.strings[index] = value;
+    }
+  }
+
+  /**
+   * Updates a single integer value of a row, if the row is cached.
+   */
+  synchronized void setLong(long id, int index, long value) {
+    Row row = rows.get(id);
+    if (row != null) {
+      row.longs[index] = value;
+    }
+  }
+
+  synchronized void remove(long id) {
+    rows.remove(id);
+  }
+
+  synchronized void clear() {
+    rows.clear();
+  }
+
+  synchronized long getHits() {
+    return hits;
+  }
+
+  synchronized long getMisses() {
+    return misses;
+  }
+
+  synchronized long getEvictions() {
+    return evictions;
+  }
+}
@@ -15,10 +15,16 @@
  ******************************************************************************/
 package de.knufficast.logic.db;
 
+import java.util.Set;
+
 import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.util.Log;
+import de.knufficast.logic.db.DBEpisode.DownloadState;
+import de.knufficast.logic.db.DBEpisode.FlattrState;
+import de.knufficast.logic.db.DBEpisode.PlayState;
+import de.knufficast.util.SetUtil;
 
 /**
  * A class that keeps information about the SQLite table structure.
@@ -46,6 +52,8 @@ public class SQLiteHelper extends SQLiteOpenHelper {
   public static final String C_EP_SEEK_LOCATION = "seekLocation";
   public static final String C_EP_DURATION = "duration";
   public static final String C_EP_IS_NEW = "isNew";
+  // whether content has been through the HtmlSanitizer yet
+  public static final String C_EP_CONTENT_SANITIZED = "contentSanitized";
   public static final String C_FD_DESCRIPTION = "description";
   public static final String C_FD_ENCODING = "encoding";
   public static final String C_FD_ETAG = "eTag";
@@ -53,17 +61,77 @@ public class SQLiteHelper extends SQLiteOpenHelper {
   public static final String C_FD_IMG_URL = "imgUrl";
   public static final String C_FD_LAST_UPDATED = "lastUpdated";
   public static final String C_FD_TITLE = "title";
+  // SHA-1 of the last downloaded document, for servers without validators
+  public static final String C_FD_CONTENT_DIGEST = "contentDigest";
+  // refresh scheduling, see RefreshSchedule; times are local and in ms
+  public static final String C_FD_REFRESH_HINT = "refreshHint";
+  public static final String C_FD_PUBLISH_INTERVAL = "publishInterval";
+  public static final String C_FD_LAST_NEW_EPISODE = "lastNewEpisode";
+  public static final String C_FD_NEXT_DUE = "nextDue";
+  public static final String C_FD_REFRESH_FAILURES = "refreshFailures";
   public static final String C_QUEUE_EP_ID = "epId";
 
+  /**
+   * Columns of the episodes table that the {@link Database} caches row-wise.
+   * Leaves out description and content, which can be huge and are only needed
+   * on the detail screen.
+   */
+  public static final String[] EP_ROW_COLUMNS = { C_EP_FEED_ID,
+      C_EP_DATA_URL, C_EP_TITLE, C_EP_FLATTR_URL, C_EP_GUID, C_EP_IMG_URL,
+      C_EP_DOWNLOADED_BYTES, C_EP_TOTAL_BYTES, C_EP_DOWNLOAD_STATE,
+      C_EP_FLATTR_STATE, C_EP_PLAY_STATE, C_EP_SEEK_LOCATION, C_EP_DURATION,
+      C_EP_IS_NEW, C_EP_CONTENT_SANITIZED };
+
+  /**
+   * Columns of the feeds table that the {@link Database} caches row-wise.
+   */
+  public static final String[] FD_ROW_COLUMNS = { C_FD_DESCRIPTION,
+      C_FD_ENCODING, C_FD_ETAG, C_FD_FEED_URL, C_FD_IMG_URL, C_FD_TITLE,
+      C_FD_LAST_UPDATED, C_FD_REFRESH_HINT, C_FD_PUBLISH_INTERVAL,
+      C_FD_LAST_NEW_EPISODE, C_FD_NEXT_DUE, C_FD_REFRESH_FAILURES };
+
+  /**
+   * Columns of the episodes table that are stored as INTEGER. The enum states
+   * are stored by their ordinal.
+   */
+  public static final Set<String> EP_INTEGER_COLUMNS = SetUtil.hash(
+      C_EP_FEED_ID, C_EP_DOWNLOADED_BYTES, C_EP_TOTAL_BYTES,
+      C_EP_DOWNLOAD_STATE, C_EP_FLATTR_STATE, C_EP_PLAY_STATE,
+      C_EP_SEEK_LOCATION, C_EP_DURATION, C_EP_IS_NEW, C_EP_CONTENT_SANITIZED);
+
+  /**
+   * Columns of the feeds table that are stored as INTEGER.
+   */
+  public static final Set<String> FD_INTEGER_COLUMNS = SetUtil.hash(
+      C_FD_LAST_UPDATED, C_FD_REFRESH_HINT, C_FD_PUBLISH_INTERVAL,
+      C_FD_LAST_NEW_EPISODE, C_FD_NEXT_DUE, C_FD_REFRESH_FAILURES);
+
+  /**
+   * Whether the column of the table is stored as INTEGER.
+   */
+  public static boolean isIntegerColumn(String table, String column) {
+    if (TABLE_EPISODES.equals(table)) {
+      return EP_INTEGER_COLUMNS.contains(column);
+    }
+    if (TABLE_FEEDS.equals(table)) {
+      return FD_INTEGER_COLUMNS.contains(column);
+    }
+    return false;
+  }
+
   private static final String DATABASE_NAME = "knufficast.db";
-  private static final int DATABASE_VERSION = 2;
+  private static final int DATABASE_VERSION = 8;
+
+  private static final String INDEX_EP_FEED_ID = "episodes_feedId";
+  private static final String INDEX_EP_FEED_GUID = "episodes_feedId_guid";
+  private static final String INDEX_FD_FEED_URL = "feeds_feedUrl";
 
   private static final String UPDATE = " text not null default '';";
+  private static final String UPDATEINT = " integer not null default 0;";
   private static final String NEXT = " text not null default '', ";
-  private static final String NEXTINT = " text not null default '0', ";
-  private static final String NEXTENUM = " text not null default 'NONE', ";
-  private static final String NEXTBOOLEAN = " text not null default '1', ";
-  private static final String LAST = " text not null default '');";
+  private static final String NEXTINT = " integer not null default 0, ";
+  private static final String NEXTBOOLEAN = " integer not null default 1, ";
+  private static final String LASTINT = " integer not null default 0);";
 
   public SQLiteHelper(Context context) {
     super(context, DATABASE_NAME, null, DATABASE_VERSION);
@@ -81,13 +149,14 @@ public class SQLiteHelper extends SQLiteOpenHelper {
       + C_EP_IMG_URL + NEXT
       + C_EP_DOWNLOADED_BYTES + NEXTINT
       + C_EP_TOTAL_BYTES + NEXTINT
-      + C_EP_DOWNLOAD_STATE + NEXTENUM
-      + C_EP_FLATTR_STATE + NEXTENUM
-      + C_EP_PLAY_STATE + NEXTENUM
+      + C_EP_DOWNLOAD_STATE + nextEnum(DownloadState.NONE)
+      + C_EP_FLATTR_STATE + nextEnum(FlattrState.NONE)
+      + C_EP_PLAY_STATE + nextEnum(PlayState.NONE)
       + C_EP_SEEK_LOCATION + NEXTINT
       + C_EP_DURATION + NEXTINT
       + C_EP_IS_NEW + NEXTBOOLEAN
       + C_EP_CONTENT + NEXT
+      + C_EP_CONTENT_SANITIZED + NEXTBOOLEAN
       + "FOREIGN KEY(" + C_EP_FEED_ID + ") REFERENCES " + TABLE_FEEDS + "(" + C_ID + "));";
   
   private static final String FD_CREATE = "create table "
@@ -99,22 +168,189 @@ public class SQLiteHelper extends SQLiteOpenHelper {
       + C_FD_FEED_URL + NEXT
       + C_FD_IMG_URL + NEXT
       + C_FD_TITLE + NEXT
-      + C_FD_LAST_UPDATED + LAST;
+      + C_FD_LAST_UPDATED + NEXTINT
+      + C_FD_CONTENT_DIGEST + NEXT
+      + C_FD_REFRESH_HINT + NEXTINT
+      + C_FD_PUBLISH_INTERVAL + NEXTINT
+      + C_FD_LAST_NEW_EPISODE + NEXTINT
+      + C_FD_NEXT_DUE + NEXTINT
+      + C_FD_REFRESH_FAILURES + LASTINT;
+
+  // episodes of a feed, ordered by id
+  private static final String EP_FEED_ID_INDEX = "create index "
+      + INDEX_EP_FEED_ID + " on " + TABLE_EPISODES + "(" + C_EP_FEED_ID + ");";
+
+  // an episode is identified by its GUID within its feed
+  private static final String EP_FEED_GUID_INDEX = "create unique index "
+      + INDEX_EP_FEED_GUID + " on " + TABLE_EPISODES + "(" + C_EP_FEED_ID
+      + ", " + C_EP_GUID + ");";
+
+  // feeds are looked up by URL when adding and refreshing
+  private static final String FD_FEED_URL_INDEX = "create index "
+      + INDEX_FD_FEED_URL + " on " + TABLE_FEEDS + "(" + C_FD_FEED_URL + ");";
 
   @Override
   public void onCreate(SQLiteDatabase database) {
+    createTables(database);
+    createIndices(database);
+  }
+
+  private void createTables(SQLiteDatabase database) {
     database.execSQL(FD_CREATE);
     database.execSQL(EP_CREATE);
   }
 
+  private void createIndices(SQLiteDatabase database) {
+    database.execSQL(EP_FEED_ID_INDEX);
+    database.execSQL(EP_FEED_GUID_INDEX);
+    database.execSQL(FD_FEED_URL_INDEX);
+  }
+
   @Override
   public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
     Log.d("SQLiteHelper ", oldVersion + "->" + newVersion);
     if (oldVersion < 2) {
       db.execSQL("alter table " + TABLE_EPISODES + " add column "
           + C_EP_CONTENT + UPDATE);
-    } else if (oldVersion < DATABASE_VERSION) {
-      onCreate(db);
     }
+    if (oldVersion < 3) {
+      upgradeToIntegerColumns(db);
+    }
+    if (oldVersion < 4) {
+      upgradeToIndices(db);
+    }
+    // tables recreated by the version 3 upgrade have the new columns already
+    if (oldVersion >= 3 && oldVersion < 5) {
+      db.execSQL("alter table " + TABLE_FEEDS + " add column "
+          + C_FD_CONTENT_DIGEST + UPDATE);
+    }
+    if (oldVersion >= 3 && oldVersion < 6) {
+      // everything stored so far was sanitized while refreshing
+      db.execSQL("alter table " + TABLE_EPISODES + " add column "
+          + C_EP_CONTENT_SANITIZED + " integer not null default 1;");
+    }
+    if (oldVersion >= 3 && oldVersion < 7) {
+      // all feeds start out due
+      String[] columns = { C_FD_REFRESH_HINT, C_FD_PUBLISH_INTERVAL,
+          C_FD_LAST_NEW_EPISODE, C_FD_NEXT_DUE };
+      for (String column : columns) {
+        db.execSQL("alter table " + TABLE_FEEDS + " add column " + column
+            + UPDATEINT);
+      }
+    }
+    if (oldVersion >= 3 && oldVersion < 8) {
+      db.execSQL("alter table " + TABLE_FEEDS + " add column "
+          + C_FD_REFRESH_FAILURES + UPDATEINT);
+    }
+  }
+
+  /**
+   * Version 4: indices on the lookup columns and a unique GUID per feed. Older
+   * versions stored episodes without GUID with an empty one, so those get the
+   * fallback the parser uses now, and remaining duplicates are made unique by
+   * appending the row ID.
+   */
+  private void upgradeToIndices(SQLiteDatabase db) {
+    db.execSQL("update " + TABLE_EPISODES + " set " + C_EP_GUID + " = "
+        + C_EP_DATA_URL + " where " + C_EP_GUID + " = ''");
+    db.execSQL("update " + TABLE_EPISODES + " set " + C_EP_GUID + " = "
+        + C_EP_GUID + " || '#' || " + C_ID + " where " + C_ID
+        + " not in (select min(" + C_ID + ") from " + TABLE_EPISODES
+        + " group by " + C_EP_FEED_ID + ", " + C_EP_GUID + ")");
+    createIndices(db);
+  }
+
+  /**
+   * Version 3: numbers and enum states are stored as INTEGER instead of text.
+   * SQLite can't change column types, so the tables are copied.
+   */
+  private void upgradeToIntegerColumns(SQLiteDatabase db) {
+    String oldFeeds = TABLE_FEEDS + "_v2";
+    String oldEpisodes = TABLE_EPISODES + "_v2";
+    db.execSQL("alter table " + TABLE_FEEDS + " rename to " + oldFeeds);
+    db.execSQL("alter table " + TABLE_EPISODES + " rename to " + oldEpisodes);
+    createTables(db);
+    // the new tables may have more columns than version 3 had
+    db.execSQL("insert into " + TABLE_FEEDS + "("
+        + C_ID + ", "
+        + C_FD_DESCRIPTION + ", "
+        + C_FD_ENCODING + ", "
+        + C_FD_ETAG + ", "
+        + C_FD_FEED_URL + ", "
+        + C_FD_IMG_URL + ", "
+        + C_FD_TITLE + ", "
+        + C_FD_LAST_UPDATED
+        + ") select "
+        + C_ID + ", "
+        + C_FD_DESCRIPTION + ", "
+        + C_FD_ENCODING + ", "
+        + C_FD_ETAG + ", "
+        + C_FD_FEED_URL + ", "
+        + C_FD_IMG_URL + ", "
+        + C_FD_TITLE + ", "
+        + toInteger(C_FD_LAST_UPDATED)
+        + " from " + oldFeeds);
+    db.execSQL("insert into " + TABLE_EPISODES + "("
+        + C_ID + ", "
+        + C_EP_FEED_ID + ", "
+        + C_EP_DATA_URL + ", "
+        + C_EP_TITLE + ", "
+        + C_EP_DESCRIPTION + ", "
+        + C_EP_FLATTR_URL + ", "
+        + C_EP_GUID + ", "
+        + C_EP_IMG_URL + ", "
+        + C_EP_DOWNLOADED_BYTES + ", "
+        + C_EP_TOTAL_BYTES + ", "
+        + C_EP_DOWNLOAD_STATE + ", "
+        + C_EP_FLATTR_STATE + ", "
+        + C_EP_PLAY_STATE + ", "
+        + C_EP_SEEK_LOCATION + ", "
+        + C_EP_DURATION + ", "
+        + C_EP_IS_NEW + ", "
+        + C_EP_CONTENT
+        + ") select "
+        + C_ID + ", "
+        + C_EP_FEED_ID + ", "
+        + C_EP_DATA_URL + ", "
+        + C_EP_TITLE + ", "
+        + C_EP_DESCRIPTION + ", "
+        + C_EP_FLATTR_URL + ", "
+        + C_EP_GUID + ", "
+        + C_EP_IMG_URL + ", "
+        + toInteger(C_EP_DOWNLOADED_BYTES) + ", "
+        + toInteger(C_EP_TOTAL_BYTES) + ", "
+        + toOrdinal(C_EP_DOWNLOAD_STATE, DownloadState.values(), DownloadState.NONE) + ", "
+        + toOrdinal(C_EP_FLATTR_STATE, FlattrState.values(), FlattrState.NONE) + ", "
+        + toOrdinal(C_EP_PLAY_STATE, PlayState.values(), PlayState.NONE) + ", "
+        + toInteger(C_EP_SEEK_LOCATION) + ", "
+        + toInteger(C_EP_DURATION) + ", "
+        + toInteger(C_EP_IS_NEW) + ", "
+        + C_EP_CONTENT
+        + " from " + oldEpisodes);
+    db.execSQL("drop table " + oldEpisodes);
+    db.execSQL("drop table " + oldFeeds);
+  }
+
+  private static String nextEnum(Enum<?> defaultValue) {
+    return " integer not null default " + defaultValue.ordinal() + ", ";
+  }
+
+  private static String toInteger(String column) {
+    return "cast(" + column + " as integer)";
+  }
+
+  /**
+   * SQL expression that maps the stored enum names to their ordinals.
+   */
+  private static String toOrdinal(String column, Enum<?>[] values,
+      Enum<?> defaultValue) {
+    StringBuilder sb = new StringBuilder("case ");
+    sb.append(column);
+    for (Enum<?> value : values) {
+      sb.append(" when '").append(value.name()).append("' then ")
+          .append(value.ordinal());
+    }
+    sb.append(" else ").append(defaultValue.ordinal()).append(" end");
+    return sb.toString();
   }
 }
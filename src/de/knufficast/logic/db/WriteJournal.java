@@ -0,0 +1,306 @@
+/*******************************************************************************
+ * Copyright 2012 Crazywater
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.knufficast.logic.db;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+import android.util.Log;
+import de.knufficast.util.file.FileUtil;
+
+/**
+ * An append-only log of the writes that the {@link Database} has accepted but
+ * not yet committed. Writes are encoded into a buffer by the threads that make
+ * them, and the buffer is appended to the file by the background writer with
+ * {@link #sync}, so that they survive the process being killed. When a flush
+ * starts, the current file is rotated away and the writes that arrive during
+ * the flush go to a fresh file; the rotated file is deleted once the flush has
+ * committed. On startup, whatever is left is replayed.
+ * 
+ * @author crazywater
+ * 
+ */
+class WriteJournal {
+  private static final String CURRENT = "db-journal";
+  private static final String FLUSHING = "db-journal.flushing";
+
+  private static final byte TYPE_LONG = 0;
+  private static final byte TYPE_STRING = 1;
+  // for strings that writeUTF can't take
+  private static final byte TYPE_LONG_STRING = 2;
+  // writeUTF takes at most 64K bytes, which is at least this many chars
+  private static final int MAX_UTF_CHARS = 65535 / 3;
+
+  private final FileUtil fileUtil;
+  // guarded by this: the records that haven't been written to the file yet
+  private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(4096);
+  private final DataOutputStream records = new DataOutputStream(buffer);
+  // guarded by fileLock: the file and how much of it holds whole records
+  private final Object fileLock = new Object();
+  private OutputStream out;
+  private long goodLength;
+
+  /**
+   * Receives the records of the journal during replay.
+   */
+  interface Visitor {
+    void visit(String table, long id, String column, Object value);
+  }
+
+  WriteJournal(FileUtil fileUtil) {
+    this.fileUtil = fileUtil;
+  }
+
+  /**
+   * Adds a write to the journal. Only encodes it; {@link #sync} writes it to
+   * the file.
+   */
+  synchronized void append(String table, long id, String column, Object value) {
+    int start = buffer.size();
+    try {
+      records.writeUTF(table);
+      records.writeLong(id);
+      records.writeUTF(column);
+      if (value instanceof Long) {
+        records.writeByte(TYPE_LONG);
+        records.writeLong(((Long) value).longValue());
+      } else if (((String) value).length() <= MAX_UTF_CHARS) {
+        records.writeByte(TYPE_STRING);
+        records.writeUTF((String) value);
+      } else {
+        byte[] bytes = ((String) value).getBytes("UTF-8");
+        records.writeByte(TYPE_LONG_STRING);
+        records.writeInt(bytes.length);
+        records.write(bytes);
+      }
+    } catch (IOException e) {
+      // can't happen in memory, but don't leave half a record behind
+      Log.e("WriteJournal", "Could not journal write", e);
+      truncateBuffer(start);
+    }
+  }
+
+  synchronized boolean hasBuffered() {
+    return buffer.size() > 0;
+  }
+
+  /**
+   * Appends the buffered records to the file. Failures are logged and
+   * otherwise ignored: the writes still reach the database with the next
+   * flush, they just aren't protected against a crash.
+   */
+  void sync() {
+    byte[] bytes = takeBuffered();
+    if (bytes.length > 0) {
+      synchronized (fileLock) {
+        write(bytes);
+      }
+    }
+  }
+
+  /**
+   * Moves the current journal aside before a flush. Everything appended from
+   * now on belongs to the next flush. If a previous flush failed, its file is
+   * still there and the current records are added to it.
+   */
+  void rotate() {
+    byte[] bytes = takeBuffered();
+    synchronized (fileLock) {
+      if (bytes.length > 0) {
+        write(bytes);
+      }
+      closeQuietly();
+      File current = fileUtil.resolveFile(CURRENT);
+      File flushing = fileUtil.resolveFile(FLUSHING);
+      if (!current.exists()) {
+        return;
+      }
+      if (!flushing.exists()) {
+        if (current.renameTo(flushing)) {
+          return;
+        }
+      }
+      try {
+        copy(current, fileUtil.write(FLUSHING, true));
+        current.delete();
+      } catch (IOException e) {
+        Log.e("WriteJournal", "Could not rotate journal", e);
+      }
+    }
+  }
+
+  /**
+   * Called after a flush has committed: its writes are in the database now.
+   */
+  void flushed() {
+    synchronized (fileLock) {
+      fileUtil.resolveFile(FLUSHING).delete();
+    }
+  }
+
+  /**
+   * Passes every record of the journal to the visitor, oldest first. A record
+   * that was cut off by a crash ends the replay of its file.
+   */
+  void replay(Visitor visitor) {
+    synchronized (fileLock) {
+      replay(fileUtil.resolveFile(FLUSHING), visitor);
+      closeQuietly();
+      replay(fileUtil.resolveFile(CURRENT), visitor);
+    }
+  }
+
+  /**
+   * Deletes the whole journal, after it has been replayed.
+   */
+  void clear() {
+    synchronized (fileLock) {
+      closeQuietly();
+      fileUtil.resolveFile(FLUSHING).delete();
+      fileUtil.resolveFile(CURRENT).delete();
+    }
+  }
+
+  private void replay(File file, Visitor visitor) {
+    if (!file.exists()) {
+      return;
+    }
+    DataInputStream in = null;
+    try {
+      in = new DataInputStream(new BufferedInputStream(
+          new FileInputStream(file)));
+      while (true) {
+        String table;
+        try {
+          table = in.readUTF();
+        } catch (EOFException e) {
+          break;
+        }
+        long id = in.readLong();
+        String column = in.readUTF();
+        Object value;
+        byte type = in.readByte();
+        if (type == TYPE_LONG) {
+          value = in.readLong();
+        } else if (type == TYPE_STRING) {
+          value = in.readUTF();
+        } else {
+          byte[] bytes = new byte[in.readInt()];
+          in.readFully(bytes);
+          value = new String(bytes, "UTF-8");
+        }
+        visitor.visit(table, id, column, value);
+      }
+    } catch (EOFException e) {
+      Log.w("WriteJournal", "Ignoring truncated record in " + file.getName());
+    } catch (IOException e) {
+      Log.e("WriteJournal", "Could not replay " + file.getName(), e);
+    } finally {
+      if (in != null) {
+        try {
+          in.close();
+        } catch (IOException e) {
+          // nothing to do
+        }
+      }
+    }
+  }
+
+  private void copy(File from, OutputStream to) throws IOException {
+    InputStream in = new FileInputStream(from);
+    try {
+      byte[] buffer = new byte[8192];
+      int read;
+      while ((read = in.read(buffer)) > 0) {
+        to.write(buffer, 0, read);
+      }
+    } finally {
+      in.close();
+      to.close();
+    }
+  }
+
+  private synchronized byte[] takeBuffered() {
+    byte[] bytes = buffer.toByteArray();
+    buffer.reset();
+    return bytes;
+  }
+
+  private synchronized void truncateBuffer(int length) {
+    byte[] bytes = buffer.toByteArray();
+    buffer.reset();
+    buffer.write(bytes, 0, length);
+  }
+
+  /**
+   * Appends whole records to the current file. Must hold fileLock. If that
+   * fails, the file is cut back to the last whole record, so that a torn
+   * record doesn't hide the records appended after it from the replay.
+   */
+  private void write(byte[] bytes) {
+    try {
+      if (out == null) {
+        out = fileUtil.write(CURRENT, true);
+        goodLength = fileUtil.resolveFile(CURRENT).length();
+      }
+      out.write(bytes);
+      out.flush();
+      goodLength += bytes.length;
+    } catch (IOException e) {
+      Log.e("WriteJournal", "Could not journal " + bytes.length + " bytes", e);
+      closeQuietly();
+      truncate(fileUtil.resolveFile(CURRENT), goodLength);
+    }
+  }
+
+  private void truncate(File file, long length) {
+    if (!file.exists()) {
+      return;
+    }
+    try {
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try {
+        raf.setLength(length);
+      } finally {
+        raf.close();
+      }
+    } catch (IOException e) {
+      // the torn record would end the replay, so rather lose the whole file
+      Log.e("WriteJournal", "Could not truncate journal, deleting it", e);
+      file.delete();
+    }
+  }
+
+  private void closeQuietly() {
+    if (out != null) {
+      try {
+        out.close();
+      } catch (IOException e) {
+        // nothing to do
+      }
+      out = null;
+    }
+  }
+}
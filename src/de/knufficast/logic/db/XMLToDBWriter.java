@@ -18,9 +18,16 @@ package de.knufficast.logic.db;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
+import android.util.Log;
 import de.knufficast.App;
+import de.knufficast.logic.FeedSink;
 import de.knufficast.logic.xml.FeedPostProcessor;
 import de.knufficast.logic.xml.XMLEpisode;
 import de.knufficast.logic.xml.XMLFeed;
@@ -37,6 +44,15 @@ public class XMLToDBWriter {
   private final Database db = App.get().getDB();
   private final FeedPostProcessor postProcessor = new FeedPostProcessor();
 
+  private static final String[] EPISODE_COLUMNS = { SQLiteHelper.C_EP_DATA_URL,
+      SQLiteHelper.C_EP_DESCRIPTION, SQLiteHelper.C_EP_FLATTR_URL,
+      SQLiteHelper.C_EP_GUID, SQLiteHelper.C_EP_IMG_URL,
+      SQLiteHelper.C_EP_TITLE, SQLiteHelper.C_EP_FEED_ID,
+      SQLiteHelper.C_EP_CONTENT, SQLiteHelper.C_EP_IS_NEW,
+      SQLiteHelper.C_EP_CONTENT_SANITIZED };
+  // content is sanitized when it is first shown, see DBEpisode#getContent
+  private static final Long NOT_SANITIZED = 0L;
+
   /**
    * Newly adds feeds to the database.
    */
@@ -47,14 +63,21 @@ public class XMLToDBWriter {
       List<Long> ids = db.query(SQLiteHelper.TABLE_FEEDS,
           SQLiteHelper.C_FD_FEED_URL, xmlFeed.getDataUrl());
       if (ids.isEmpty()) {
-        DBFeed feed = createFeed(xmlFeed);
-        // reverse the episodes, so we insert the oldest first
-        List<XMLEpisode> episodes = xmlFeed.getEpisodes();
-        Collections.reverse(episodes);
-        for (XMLEpisode tempEpisode : episodes) {
-          DBEpisode ep = createEpisode(feed, tempEpisode);
-          ep.setNew(false);
+        long start = System.nanoTime();
+        int inserted;
+        db.beginTransaction();
+        try {
+          DBFeed feed = createFeed(xmlFeed);
+          // reverse the episodes, so we insert the oldest first
+          List<XMLEpisode> episodes = xmlFeed.getEpisodes();
+          Collections.reverse(episodes);
+          inserted = insertEpisodes(feed, episodes, new HashSet<String>(),
+              false);
+          db.setTransactionSuccessful();
+        } finally {
+          db.endTransaction();
         }
+        reportIngest(xmlFeed, inserted, start);
       }
     }
   }
@@ -63,73 +86,245 @@ public class XMLToDBWriter {
    * Merges feeds with existing feeds in the database.
    */
   public void mergeFeeds(List<XMLFeed> tempFeeds) {
-    postProcessor.process(tempFeeds);
+    Merger merger = new Merger(null);
     for (XMLFeed tempFeed : tempFeeds) {
-      List<Long> feedIds = db.query(SQLiteHelper.TABLE_FEEDS, SQLiteHelper.C_FD_FEED_URL, tempFeed.getDataUrl());
-      DBFeed feed;
-      if (feedIds.isEmpty()) {
-        feed = createFeed(tempFeed);
-      } else {
-        feed = new DBFeed(feedIds.get(0));
-        // update the etag
-        String eTag = tempFeed.getETag();
-        if (eTag != null) {
-          feed.setETag(eTag);
+      for (XMLEpisode episode : tempFeed.getEpisodes()) {
+        if (!merger.episode(tempFeed, episode)) {
+          break;
         }
       }
-      List<XMLEpisode> newEpisodes = new ArrayList<XMLEpisode>();
-      for (XMLEpisode tempEpisode : tempFeed.getEpisodes()) {
-        // get all episode ids with this guid
-        List<Long> ids = db.query(SQLiteHelper.TABLE_EPISODES,
-            SQLiteHelper.C_EP_GUID, tempEpisode.getGuid());
-        boolean found = false;
-        for (long id : ids) {
-          DBEpisode ep = new DBEpisode(id);
-          DBFeed dbFeed = ep.getFeed();
-          // check if this episode's feed url matches ours
-          if (dbFeed.getFeedUrl().equals(tempFeed.getDataUrl())) {
-            found = true;
-            break;
-          }
+      merger.feedFinished(tempFeed);
+    }
+    merger.finish();
+  }
+
+  /**
+   * Returns a {@link FeedSink} that merges streamed feeds into the database.
+   * Call {@link Merger#finish} after parsing.
+   */
+  public Merger newMerger() {
+    return new Merger(null);
+  }
+
+  /**
+   * Like {@link #newMerger()}, but hands the writes to the given executor, so
+   * that several feeds can be parsed at the same time while only one thread
+   * writes to the database. {@link Merger#finish} waits for the writes.
+   */
+  public Merger newMerger(ExecutorService writer) {
+    return new Merger(writer);
+  }
+
+  /**
+   * Merges a feed into the database while it is being parsed. Episodes are
+   * checked against the GUIDs in the database as they arrive; only new ones
+   * are post-processed and kept. Feeds list the newest episodes first, so
+   * once a few known episodes in a row have been seen, the rest is known too
+   * and parsing is stopped. A few rather than one, because some feeds pin an
+   * old episode at the top.
+   * 
+   * @author crazywater
+   * 
+   */
+  public class Merger implements FeedSink {
+    private static final int KNOWN_IN_A_ROW_TO_STOP = 3;
+
+    private final ExecutorService writer;
+    private final List<Future<?>> writes = new ArrayList<Future<?>>();
+    private XMLFeed xmlFeed;
+    private Set<String> knownGuids;
+    private final List<XMLEpisode> newEpisodes = new ArrayList<XMLEpisode>();
+    private int knownInARow;
+    private int newEpisodeCount;
+    private long start;
+
+    private Merger(ExecutorService writer) {
+      this.writer = writer;
+    }
+
+    @Override
+    public boolean episode(XMLFeed feed, XMLEpisode episode) {
+      begin(feed);
+      if (knownGuids.contains(episode.getGuid())) {
+        knownInARow++;
+        return knownInARow < KNOWN_IN_A_ROW_TO_STOP;
+      }
+      knownInARow = 0;
+      newEpisodeCount++;
+      knownGuids.add(episode.getGuid());
+      postProcessor.process(episode);
+      newEpisodes.add(episode);
+      return true;
+    }
+
+    @Override
+    public void feedFinished(XMLFeed feed) {
+      begin(feed);
+      write();
+    }
+
+    /**
+     * Returns how many of the received episodes weren't in the database yet.
+     */
+    public int getNewEpisodeCount() {
+      return newEpisodeCount;
+    }
+
+    /**
+     * Writes what has been received so far, e.g. after parsing was stopped
+     * early, and waits until everything is written.
+     */
+    public void finish() {
+      if (xmlFeed != null) {
+        write();
+      }
+      try {
+        for (Future<?> write : writes) {
+          write.get();
         }
-        if (!found) {
-          newEpisodes.add(tempEpisode);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted while writing feeds", e);
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof RuntimeException) {
+          throw (RuntimeException) e.getCause();
         }
+        throw new IllegalStateException(e.getCause());
+      } finally {
+        writes.clear();
+      }
+    }
+
+    private void begin(XMLFeed feed) {
+      if (xmlFeed == feed) {
+        return;
       }
-      // reverse so we have the newest episodes first
-      Collections.reverse(newEpisodes);
-      for (XMLEpisode tempEpisode : newEpisodes) {
-        DBEpisode ep = createEpisode(feed, tempEpisode);
-        ep.setNew(true);
+      if (xmlFeed != null) {
+        write();
+      }
+      xmlFeed = feed;
+      start = System.nanoTime();
+      List<Long> feedIds = db.query(SQLiteHelper.TABLE_FEEDS,
+          SQLiteHelper.C_FD_FEED_URL, feed.getDataUrl());
+      knownGuids = feedIds.isEmpty() ? new HashSet<String>() : getGuids(db
+          .getFeed(feedIds.get(0)));
+    }
+
+    private void write() {
+      final XMLFeed feed = xmlFeed;
+      final List<XMLEpisode> episodes = new ArrayList<XMLEpisode>(newEpisodes);
+      final long started = start;
+      xmlFeed = null;
+      newEpisodes.clear();
+      knownInARow = 0;
+      if (writer == null) {
+        writeFeed(feed, episodes, started);
+      } else {
+        writes.add(writer.submit(new Runnable() {
+          @Override
+          public void run() {
+            writeFeed(feed, episodes, started);
+          }
+        }));
       }
     }
+
+    private void writeFeed(XMLFeed tempFeed, List<XMLEpisode> episodes,
+        long started) {
+      int inserted;
+      db.beginTransaction();
+      try {
+        List<Long> feedIds = db.query(SQLiteHelper.TABLE_FEEDS,
+            SQLiteHelper.C_FD_FEED_URL, tempFeed.getDataUrl());
+        DBFeed feed;
+        if (feedIds.isEmpty()) {
+          feed = createFeed(tempFeed);
+        } else {
+          feed = db.getFeed(feedIds.get(0));
+          // update the etag
+          String eTag = tempFeed.getETag();
+          if (eTag != null) {
+            feed.setETag(eTag);
+          }
+          feed.setRefreshHint(tempFeed.getRefreshHint());
+        }
+        // reverse so we have the newest episodes first
+        Collections.reverse(episodes);
+        inserted = insertEpisodes(feed, episodes, new HashSet<String>(), true);
+        db.setTransactionSuccessful();
+      } finally {
+        db.endTransaction();
+      }
+      reportIngest(tempFeed, inserted, started);
+    }
   }
 
-  private DBEpisode createEpisode(DBFeed feed, XMLEpisode tempEpisode) {
-    String[] values = { tempEpisode.getDataUrl(), tempEpisode.getDescription(),
-        tempEpisode.getFlattrUrl(), tempEpisode.getGuid(),
-        tempEpisode.getImgUrl(), tempEpisode.getTitle(),
-        String.valueOf(feed.getId()), tempEpisode.getContent() };
-    String[] columns = { SQLiteHelper.C_EP_DATA_URL,
-        SQLiteHelper.C_EP_DESCRIPTION, SQLiteHelper.C_EP_FLATTR_URL,
-        SQLiteHelper.C_EP_GUID, SQLiteHelper.C_EP_IMG_URL,
-        SQLiteHelper.C_EP_TITLE, SQLiteHelper.C_EP_FEED_ID,
-        SQLiteHelper.C_EP_CONTENT };
-    long episodeId = db.create(SQLiteHelper.TABLE_EPISODES,
-        Arrays.asList(columns), Arrays.asList(values));
-    return new DBEpisode(episodeId);
+  /**
+   * Inserts the episodes whose GUIDs aren't known yet with a single compiled
+   * statement. Must be called inside a transaction.
+   * 
+   * @return how many episodes were inserted
+   */
+  private int insertEpisodes(DBFeed feed, List<XMLEpisode> episodes,
+      Set<String> knownGuids, boolean isNew) {
+    Long feedId = feed.getId();
+    Long isNewValue = isNew ? 1L : 0L;
+    List<Object[]> rows = new ArrayList<Object[]>();
+    for (XMLEpisode episode : episodes) {
+      // skips known episodes and items that appear twice in the document; the
+      // unique index still guards against races with other writers
+      if (!knownGuids.add(episode.getGuid())) {
+        continue;
+      }
+      Object[] row = { episode.getDataUrl(), episode.getDescription(),
+          episode.getFlattrUrl(), episode.getGuid(), episode.getImgUrl(),
+          episode.getTitle(), feedId, episode.getContent(), isNewValue,
+          NOT_SANITIZED };
+      rows.add(row);
+    }
+    long[] ids = db.createAllIfAbsent(SQLiteHelper.TABLE_EPISODES,
+        EPISODE_COLUMNS, rows);
+    int inserted = 0;
+    for (long id : ids) {
+      if (id != -1) {
+        inserted++;
+      }
+    }
+    return inserted;
+  }
+
+  private void reportIngest(XMLFeed xmlFeed, int inserted, long start) {
+    db.getStats().record("ingest", SQLiteHelper.TABLE_FEEDS,
+        DatabaseStats.ALL_COLUMNS, start);
+    long millis = (System.nanoTime() - start) / 1000000;
+    Log.d("XMLToDBWriter", "Wrote " + inserted + " new episodes of "
+        + xmlFeed.getDataUrl() + " in " + millis + " ms");
+  }
+
+  /**
+   * Returns the GUIDs of all episodes of the feed, read in one query.
+   */
+  private Set<String> getGuids(DBFeed feed) {
+    String[] columns = { SQLiteHelper.C_EP_GUID };
+    String[] args = { String.valueOf(feed.getId()) };
+    Projection projection = db.project(SQLiteHelper.TABLE_EPISODES, columns,
+        SQLiteHelper.C_EP_FEED_ID + " = ?", args, null);
+    return new HashSet<String>(Arrays.asList(projection
+        .getStrings(SQLiteHelper.C_EP_GUID)));
   }
 
   private DBFeed createFeed(XMLFeed tempFeed) {
     String[] columns = { SQLiteHelper.C_FD_FEED_URL,
         SQLiteHelper.C_FD_DESCRIPTION, SQLiteHelper.C_FD_ENCODING,
         SQLiteHelper.C_FD_ETAG, SQLiteHelper.C_FD_IMG_URL,
-        SQLiteHelper.C_FD_TITLE, SQLiteHelper.C_FD_LAST_UPDATED };
+        SQLiteHelper.C_FD_TITLE, SQLiteHelper.C_FD_LAST_UPDATED,
+        SQLiteHelper.C_FD_REFRESH_HINT };
     String[] values = { tempFeed.getDataUrl(), tempFeed.getDescription(),
         tempFeed.getEncoding(), tempFeed.getETag(), tempFeed.getImgUrl(),
-        tempFeed.getTitle(), String.valueOf(tempFeed.getLastUpdated()) };
+        tempFeed.getTitle(), String.valueOf(tempFeed.getLastUpdated()),
+        String.valueOf(tempFeed.getRefreshHint()) };
     long feedId = db.create(SQLiteHelper.TABLE_FEEDS, Arrays.asList(columns),
         Arrays.asList(values));
-    return new DBFeed(feedId);
+    return db.getFeed(feedId);
   }
 }
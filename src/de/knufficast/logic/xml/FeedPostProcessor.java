@@ -15,87 +15,35 @@
  ******************************************************************************/
 package de.knufficast.logic.xml;
 
-import java.io.IOException;
-import java.io.StringReader;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
-
-import org.xmlpull.v1.XmlPullParserException;
-
-import de.knufficast.logic.XmlParser;
-import de.knufficast.util.SetUtil;
 
 /**
  * A class to post-process feeds after downloading them. For now only used to
- * whitelist the HTML tags used in the description.
+ * find an image for episodes that don't name one. The content itself is kept
+ * as it is and sanitized when it is first shown, see
+ * {@link de.knufficast.logic.db.DBEpisode#getContent}.
  * 
  * @author crazywater
  * 
  */
-public class FeedPostProcessor extends XmlParser {
-  private static final Set<String> whitelist = SetUtil.hash("p", "a", "li",
-      "ol", "ul", "span", "div", "i", "u", "b", "strong", "em", "blockquote",
-      "center", "bdi", "bdo", "br", "cite", "code", "hr", "q", "small", "sub",
-      "sup");
+public class FeedPostProcessor {
+  private static final HtmlSanitizer sanitizer = new HtmlSanitizer();
 
-  private XMLEpisode episode;
-  private StringBuilder stringBuilder;
-  
   public void process(List<XMLFeed> feeds) {
     for (XMLFeed feed : feeds) {
       for (XMLEpisode episode : feed.getEpisodes()) {
-        this.episode = episode;
-        processEpisode();
+        process(episode);
       }
     }
   }
 
-  private void processEpisode() {
-    try {
-      String content = episode.getContent();
-      if (!"".equals(content)) {
-        stringBuilder = new StringBuilder();
-        parseFrom(new StringReader(content));
-        episode.setContent(stringBuilder.toString());
-      }
-    } catch (XmlPullParserException e) {
-      episode.setContent("");
-    } catch (IOException e) {
-      episode.setContent("");
+  public void process(XMLEpisode episode) {
+    if (!"".equals(episode.getImgUrl()) || "".equals(episode.getContent())) {
+      return;
     }
-  }
-
-  @Override
-  protected void openTag(String tag, Map<String, String> attributes) {
-    if (whitelist.contains(tag)) {
-      stringBuilder.append("<" + tag);
-      for (Map.Entry<String, String> entry : attributes.entrySet()) {
-        stringBuilder.append(" " + entry.getKey() + "=" + "'"
-            + entry.getValue() + "'");
-      }
-      stringBuilder.append(">");
-    } else if ("".equals(episode.getImgUrl()) && "img".equals(tag)) {
-      if (attributes.containsKey("src")) {
-        episode.setImgUrl(attributes.get("src"));
-      }
-    }
-  }
-
-  @Override
-  protected void closeTag(String tag) {
-    if (whitelist.contains(tag)) {
-      stringBuilder.append("</");
-      stringBuilder.append(tag);
-      stringBuilder.append(">");
-    }
-  }
-
-  @Override
-  protected void tagText(String text) {
-    String tag = getCurrentTag();
-    if (whitelist.contains(tag)) {
-      stringBuilder.append(text);
+    String image = sanitizer.findFirstImage(episode.getContent());
+    if (image != null) {
+      episode.setImgUrl(image);
     }
   }
 }
@@ -0,0 +1,437 @@
+/*******************************************************************************
+ * Copyright 2012 Crazywater
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.knufficast.logic.xml;
+
+import java.util.Locale;
+import java.util.Set;
+
+import de.knufficast.util.SetUtil;
+
+/**
+ * Reduces the HTML of an episode's content to a whitelist of harmless tags in
+ * a single pass over the string. Unlike an XML parser it doesn't give up on
+ * malformed markup: unknown tags are dropped but their text is kept, stray
+ * closing tags are ignored and open tags are closed at the end. Keeps no
+ * state between calls, so one instance can be shared by all threads.
+ * 
+ * @author crazywater
+ * 
+ */
+public class HtmlSanitizer {
+  private static final Set<String> WHITELIST = SetUtil.hash("p", "a", "li",
+      "ol", "ul", "span", "div", "i", "u", "b", "strong", "em", "blockquote",
+      "center", "bdi", "bdo", "br", "cite", "code", "hr", "q", "small", "sub",
+      "sup");
+  // tags without a closing tag
+  private static final Set<String> VOID = SetUtil.hash("br", "hr", "img");
+  // tags whose text must not be shown
+  private static final Set<String> DROP_CONTENT = SetUtil.hash("script",
+      "style", "iframe", "object", "head", "title");
+  // tags whose content isn't markup, so a '<' in it doesn't start a tag
+  private static final Set<String> RAW_TEXT = SetUtil.hash("script", "style",
+      "iframe", "title");
+  // attributes that hold URLs, and the only schemes they may have
+  private static final Set<String> URL_ATTRIBUTES = SetUtil.hash("href",
+      "src", "cite", "action", "background", "longdesc", "usemap", "poster",
+      "formaction", "xlink:href");
+  private static final Set<String> SAFE_SCHEMES = SetUtil.hash("http",
+      "https", "mailto");
+
+  /**
+   * The sanitized HTML and the first image it referred to.
+   */
+  public static class Result {
+    private final String html;
+    private final String firstImage;
+
+    private Result(String html, String firstImage) {
+      this.html = html;
+      this.firstImage = firstImage;
+    }
+
+    public String getHtml() {
+      return html;
+    }
+
+    /**
+     * The "src" of the first img tag, or null if there was none.
+     */
+    public String getFirstImage() {
+      return firstImage;
+    }
+  }
+
+  public Result sanitize(String html) {
+    return new Run(html, html.length()).run();
+  }
+
+  /**
+   * Returns the "src" of the first img tag in the HTML, or null if there is
+   * none. Much cheaper than {@link #sanitize}, since only the img tag itself
+   * is looked at.
+   */
+  public String findFirstImage(String html) {
+    int length = html.length();
+    int from = 0;
+    while ((from = html.indexOf('<', from)) >= 0) {
+      int after = from + 4;
+      if (html.regionMatches(true, from + 1, "img", 0, 3)
+          && (after >= length || !Run.isNameChar(html.charAt(after)))) {
+        Run run = new Run(html, 0);
+        run.pos = from;
+        run.tag();
+        return run.firstImage;
+      }
+      from++;
+    }
+    return null;
+  }
+
+  /**
+   * The state of one call to {@link #sanitize}.
+   */
+  private static class Run {
+    private final String in;
+    private final int length;
+    private final StringBuilder out;
+    private int pos = 0;
+    private String firstImage;
+    private String[] open = new String[8];
+    private int depth = 0;
+    private String dropping; // the tag whose content is being skipped
+
+    Run(String in, int capacity) {
+      this.in = in;
+      length = in.length();
+      out = new StringBuilder(capacity);
+    }
+
+    Result run() {
+      while (pos < length) {
+        char c = in.charAt(pos);
+        if (c == '<') {
+          tag();
+        } else {
+          int next = in.indexOf('<', pos);
+          if (next < 0) {
+            next = length;
+          }
+          if (dropping == null) {
+            out.append(in, pos, next);
+          }
+          pos = next;
+        }
+      }
+      while (depth > 0) {
+        closeTop();
+      }
+      return new Result(out.toString(), firstImage);
+    }
+
+    /**
+     * Handles whatever starts at the '<' at pos.
+     */
+    private void tag() {
+      if (in.startsWith("<!--", pos)) {
+        int end = in.indexOf("-->", pos + 4);
+        pos = end < 0 ? length : end + 3;
+        return;
+      }
+      int i = pos + 1;
+      boolean closing = i < length && in.charAt(i) == '/';
+      if (closing) {
+        i++;
+      }
+      if (i >= length || !Character.isLetter(in.charAt(i))) {
+        if (i < length && (in.charAt(i) == '!' || in.charAt(i) == '?')) {
+          // doctype or processing instruction
+          int end = in.indexOf('>', i);
+          pos = end < 0 ? length : end + 1;
+        } else {
+          // a lone '<' is text
+          if (dropping == null) {
+            out.append("&lt;");
+          }
+          pos++;
+        }
+        return;
+      }
+      int nameStart = i;
+      while (i < length && isNameChar(in.charAt(i))) {
+        i++;
+      }
+      String name = in.substring(nameStart, i).toLowerCase(Locale.US);
+      pos = i;
+      if (closing) {
+        skipToEndOfTag();
+        closeTag(name);
+      } else {
+        openTag(name);
+      }
+    }
+
+    private void openTag(String name) {
+      boolean keep = dropping == null && WHITELIST.contains(name);
+      boolean image = dropping == null && firstImage == null
+          && "img".equals(name);
+      if (keep) {
+        out.append('<').append(name);
+      }
+      // attributes
+      while (pos < length) {
+        skipWhitespace();
+        if (pos >= length) {
+          break;
+        }
+        char c = in.charAt(pos);
+        if (c == '>') {
+          pos++;
+          break;
+        }
+        if (c == '/') {
+          pos++;
+          continue;
+        }
+        int nameStart = pos;
+        while (pos < length && !Character.isWhitespace(in.charAt(pos))
+            && "=>/".indexOf(in.charAt(pos)) < 0) {
+          pos++;
+        }
+        String attribute = in.substring(nameStart, pos).toLowerCase(Locale.US);
+        skipWhitespace();
+        String value = "";
+        if (pos < length && in.charAt(pos) == '=') {
+          pos++;
+          skipWhitespace();
+          value = attributeValue();
+        }
+        if (image && "src".equals(attribute)) {
+          firstImage = value;
+        }
+        if (keep && isSafe(attribute, value)) {
+          out.append(' ').append(attribute).append("=\"")
+              .append(value.replace("\"", "&quot;")).append('"');
+        }
+      }
+      if (keep) {
+        out.append('>');
+        if (!VOID.contains(name)) {
+          push(name);
+        }
+      } else if (dropping == null && DROP_CONTENT.contains(name)) {
+        dropping = name;
+      }
+      if (RAW_TEXT.contains(name)) {
+        skipRawText(name);
+      }
+    }
+
+    /**
+     * Skips to the closing tag of a raw text element such as script, which
+     * ends at the first "</name" and nowhere else.
+     */
+    private void skipRawText(String name) {
+      int nameLength = name.length();
+      for (int i = in.indexOf("</", pos); i >= 0; i = in.indexOf("</", i + 2)) {
+        int after = i + 2 + nameLength;
+        if (in.regionMatches(true, i + 2, name, 0, nameLength)
+            && (after >= length || !isNameChar(in.charAt(after)))) {
+          pos = i;
+          return;
+        }
+      }
+      pos = length;
+    }
+
+    private void closeTag(String name) {
+      if (dropping != null) {
+        if (dropping.equals(name)) {
+          dropping = null;
+        }
+        return;
+      }
+      for (int i = depth - 1; i >= 0; i--) {
+        if (open[i].equals(name)) {
+          while (depth > i) {
+            closeTop();
+          }
+          return;
+        }
+      }
+      // not open: ignore
+    }
+
+    private String attributeValue() {
+      if (pos >= length) {
+        return "";
+      }
+      char quote = in.charAt(pos);
+      int start;
+      int end;
+      if (quote == '"' || quote == '\'') {
+        start = pos + 1;
+        end = in.indexOf(quote, start);
+        if (end < 0) {
+          end = length;
+        }
+        pos = Math.min(end + 1, length);
+      } else {
+        start = pos;
+        while (pos < length && !Character.isWhitespace(in.charAt(pos))
+            && in.charAt(pos) != '>') {
+          pos++;
+        }
+        end = pos;
+      }
+      return in.substring(start, end);
+    }
+
+    private boolean isSafe(String attribute, String value) {
+      if (attribute.length() == 0 || attribute.startsWith("on")
+          || "style".equals(attribute)) {
+        return false;
+      }
+      return !URL_ATTRIBUTES.contains(attribute) || isSafeUrl(value);
+    }
+
+    /**
+     * Whether the URL is relative or has one of the {@link #SAFE_SCHEMES}.
+     * Looks at the URL the way a browser would: with character references
+     * decoded and whitespace and control characters removed, so that e.g.
+     * "&#106;avascript:" or "java&#x09;script:" are caught.
+     */
+    private static boolean isSafeUrl(String value) {
+      String url = decode(value);
+      StringBuilder scheme = new StringBuilder();
+      for (int i = 0; i < url.length(); i++) {
+        char c = url.charAt(i);
+        if (c == ':') {
+          return SAFE_SCHEMES.contains(scheme.toString().toLowerCase(
+              Locale.US));
+        }
+        if (c == '/' || c == '?' || c == '#') {
+          // relative: a colon from here on doesn't end a scheme
+          return true;
+        }
+        if (c > ' ' && c != 0x7f) {
+          scheme.append(c);
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Decodes numeric character references and the named ones that can hide
+     * a scheme. Unknown references are kept, which makes such a scheme
+     * unsafe.
+     */
+    private static String decode(String value) {
+      if (value.indexOf('&') < 0) {
+        return value;
+      }
+      StringBuilder decoded = new StringBuilder(value.length());
+      int length = value.length();
+      int i = 0;
+      while (i < length) {
+        char c = value.charAt(i);
+        if (c != '&') {
+          decoded.append(c);
+          i++;
+          continue;
+        }
+        int end = i + 1;
+        int codePoint = -1;
+        if (end < length && value.charAt(end) == '#') {
+          end++;
+          int radix = 10;
+          if (end < length && (value.charAt(end) | 0x20) == 'x') {
+            radix = 16;
+            end++;
+          }
+          int digits = end;
+          while (end < length && Character.digit(value.charAt(end), radix) >= 0
+              && end - digits < 8) {
+            end++;
+          }
+          if (end > digits) {
+            codePoint = Integer.parseInt(value.substring(digits, end), radix);
+          }
+        } else {
+          while (end < length && Character.isLetter(value.charAt(end))) {
+            end++;
+          }
+          codePoint = namedReference(value.substring(i + 1, end));
+        }
+        if (codePoint < 0 || codePoint > Character.MAX_CODE_POINT) {
+          decoded.append(c);
+          i++;
+          continue;
+        }
+        decoded.appendCodePoint(codePoint);
+        i = end < length && value.charAt(end) == ';' ? end + 1 : end;
+      }
+      return decoded.toString();
+    }
+
+    private static int namedReference(String name) {
+      String lower = name.toLowerCase(Locale.US);
+      if ("colon".equals(lower)) {
+        return ':';
+      } else if ("tab".equals(lower)) {
+        return '\t';
+      } else if ("newline".equals(lower)) {
+        return '\n';
+      } else if ("amp".equals(lower)) {
+        return '&';
+      } else if ("sol".equals(lower)) {
+        return '/';
+      } else if ("quest".equals(lower)) {
+        return '?';
+      } else if ("num".equals(lower)) {
+        return '#';
+      }
+      return -1;
+    }
+
+    private void push(String name) {
+      if (depth == open.length) {
+        String[] grown = new String[depth * 2];
+        System.arraycopy(open, 0, grown, 0, depth);
+        open = grown;
+      }
+      open[depth++] = name;
+    }
+
+    private void closeTop() {
+      out.append("</").append(open[--depth]).append('>');
+    }
+
+    private void skipWhitespace() {
+      while (pos < length && Character.isWhitespace(in.charAt(pos))) {
+        pos++;
+      }
+    }
+
+    private void skipToEndOfTag() {
+      int end = in.indexOf('>', pos);
+      pos = end < 0 ? length : end + 1;
+    }
+
+    private static boolean isNameChar(char c) {
+      return Character.isLetterOrDigit(c) || c == ':' || c == '-';
+    }
+  }
+}
@@ -26,6 +26,9 @@ public class XMLFeed {
   private long lastUpdated = 0;
   private String eTag = "";
   private String imgUrl = "";
+  private int ttl = 0;
+  private String updatePeriod = "";
+  private int updateFrequency = 1;
 
   private final List<XMLEpisode> episodes = new ArrayList<XMLEpisode>();
 
@@ -85,6 +88,62 @@ public class XMLFeed {
     this.imgUrl = imgUrl;
   }
 
+  /**
+   * The &lt;ttl&gt; of the feed in minutes, 0 if none.
+   */
+  public int getTtl() {
+    return ttl;
+  }
+
+  public void setTtl(int ttl) {
+    this.ttl = ttl;
+  }
+
+  /**
+   * The sy:updatePeriod of the feed ("hourly", "daily", ...), "" if none.
+   */
+  public String getUpdatePeriod() {
+    return updatePeriod;
+  }
+
+  public void setUpdatePeriod(String updatePeriod) {
+    this.updatePeriod = updatePeriod;
+  }
+
+  /**
+   * The sy:updateFrequency of the feed: how often it is updated per update
+   * period. 1 if none.
+   */
+  public int getUpdateFrequency() {
+    return updateFrequency;
+  }
+
+  public void setUpdateFrequency(int updateFrequency) {
+    this.updateFrequency = updateFrequency;
+  }
+
+  /**
+   * How long the feed asks clients to wait between refreshes in ms, according
+   * to its ttl and update period. 0 if it doesn't say.
+   */
+  public long getRefreshHint() {
+    long hour = 60 * 60 * 1000L;
+    long period = 0;
+    if ("hourly".equals(updatePeriod)) {
+      period = hour;
+    } else if ("daily".equals(updatePeriod)) {
+      period = 24 * hour;
+    } else if ("weekly".equals(updatePeriod)) {
+      period = 7 * 24 * hour;
+    } else if ("monthly".equals(updatePeriod)) {
+      period = 30 * 24 * hour;
+    } else if ("yearly".equals(updatePeriod)) {
+      period = 365 * 24 * hour;
+    }
+    period /= Math.max(1, updateFrequency);
+    return Math.max(ttl * 60 * 1000L, period);
+  }
+
   public void addEpisode(XMLEpisode episode) {
     episodes.add(episode);
   }
@@ -33,8 +33,6 @@ import de.knufficast.R;
 import de.knufficast.flattr.FlattrApi;
 import de.knufficast.logic.db.DBEpisode;
 import de.knufficast.logic.db.DBFeed;
-import de.knufficast.logic.db.Database;
-import de.knufficast.logic.db.SQLiteHelper;
 import de.knufficast.logic.db.DBEpisode.FlattrState;
 import de.knufficast.ui.main.MainActivity;
 import de.knufficast.ui.settings.SettingsActivity;
@@ -54,7 +52,6 @@ public class EpisodeDetailActivity extends FragmentActivity {
   // Request paging through the queue instead of paging through the feed.
   public static final String REQUEST_QUEUE_PAGING_INTENT = "queuePagingIntent";
 
-  private Database db;
   private DBEpisode currentEpisode;
   private ViewPager viewPager;
   private EpisodesPagerAdapter sectionsPagerAdapter;
@@ -74,24 +71,17 @@ public class EpisodeDetailActivity extends FragmentActivity {
     setContentView(R.layout.activity_episode_detail);
     getActionBar().setDisplayHomeAsUpEnabled(true);
 
-    db = App.get().getDB();
-
     Long episodeId = getIntent().getExtras().getLong(EPISODE_ID_INTENT);
     boolean queuePaging = getIntent().getExtras().getBoolean(
         REQUEST_QUEUE_PAGING_INTENT);
     episodes.clear();
-    currentEpisode = new DBEpisode(episodeId);
+    currentEpisode = App.get().getDB().getEpisode(episodeId);
     if (queuePaging) {
       // if we have queue paging, set the episodes according to the queue
       episodes.addAll(App.get().getQueue().asList());
     } else {
       // we have feed paging, page through the feed
-      List<Long> ids = db.query(SQLiteHelper.TABLE_EPISODES,
-          SQLiteHelper.C_EP_FEED_ID,
-          String.valueOf(currentEpisode.getFeed().getId()));
-      for (long id : ids) {
-        episodes.add(new DBEpisode(id));
-      }
+      episodes.addAll(currentEpisode.getFeed().getEpisodes());
     }
   }
 
@@ -74,7 +74,7 @@ public class EpisodeDetailFragment extends BaseFragment {
   private Listener<EpisodeDownloadProgressEvent> downloadProgressListener = new Listener<EpisodeDownloadProgressEvent>() {
     @Override
     public void onEvent(EpisodeDownloadProgressEvent event) {
-      if (event.getIdentifier() == episode.getId()) {
+      if (event.getIdentifiers().contains(episode.getId())) {
         updateDownloadState();
       }
     }
@@ -173,7 +173,8 @@ public class EpisodeDetailFragment extends BaseFragment {
   public void onCreate(Bundle savedInstanceState) {
     super.onCreate(savedInstanceState);
     if (savedInstanceState != null) {
-      episode = new DBEpisode(savedInstanceState.getLong(EPISODE_ID));
+      episode = App.get().getDB().getEpisode(
+          savedInstanceState.getLong(EPISODE_ID));
     }
     feed = episode.getFeed();
     queue = App.get().getQueue();
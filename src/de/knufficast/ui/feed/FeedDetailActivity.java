@@ -87,7 +87,7 @@ public class FeedDetailActivity extends Activity {
   public void onStart() {
     super.onStart();
     long feedId = getIntent().getExtras().getLong(FEED_ID_INTENT);
-    DBFeed feed = new DBFeed(feedId);
+    DBFeed feed = App.get().getDB().getFeed(feedId);
     setFeed(feed);
     eventBus = App.get().getEventBus();
     eventBus.addListener(NewImageEvent.class, newImageListener);
@@ -125,6 +125,7 @@ public class MainActivity extends FragmentActivity implements
   @Override
   public void onStop() {
     App.get().save();
+    App.get().getDB().flush();
     super.onStop();
   }
 
@@ -39,6 +39,7 @@ import de.knufficast.events.PlayerStateChangeEvent;
 import de.knufficast.events.QueueChangedEvent;
 import de.knufficast.logic.db.DBEpisode;
 import de.knufficast.logic.db.Queue;
+import de.knufficast.logic.db.SQLiteHelper;
 import de.knufficast.player.QueuePlayer;
 import de.knufficast.ui.BaseFragment;
 import de.knufficast.ui.DnDListView;
@@ -102,10 +103,11 @@ public class QueueFragment extends BaseFragment implements
   private final Listener<EpisodeDownloadProgressEvent> episodeDownloadProgressListener = new Listener<EpisodeDownloadProgressEvent>() {
     @Override
     public void onEvent(EpisodeDownloadProgressEvent event) {
+      // the queue itself is unchanged, only its rows need redrawing
       if (updatingDownloads) {
         for (DBEpisode ep : ourQueue) {
-          if (ep.getId() == event.getIdentifier()) {
-            updateQueue();
+          if (event.getIdentifiers().contains(ep.getId())) {
+            redrawQueue();
             break;
           }
         }
@@ -296,6 +298,11 @@ public class QueueFragment extends BaseFragment implements
     Queue queue = App.get().getQueue();
     ourQueue.clear();
     ourQueue.addAll(queue.asList());
+    List<Long> ids = new ArrayList<Long>();
+    for (DBEpisode ep : ourQueue) {
+      ids.add(ep.getId());
+    }
+    App.get().getDB().prefetch(SQLiteHelper.TABLE_EPISODES, ids);
     redrawQueue();
   }
 
@@ -15,12 +15,18 @@
  ******************************************************************************/
 package de.knufficast.ui.settings;
 
+import java.io.IOException;
+import java.io.PrintWriter;
+
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.os.Bundle;
 import android.preference.ListPreference;
 import android.preference.Preference;
+import android.preference.Preference.OnPreferenceClickListener;
 import android.preference.PreferenceFragment;
+import android.util.Log;
+import android.widget.Toast;
 import de.knufficast.App;
 import de.knufficast.R;
 import de.knufficast.events.EventBus;
@@ -28,6 +34,11 @@ import de.knufficast.events.FlattrStatusEvent;
 import de.knufficast.events.Listener;
 import de.knufficast.logic.FlattrConfiguration;
 import de.knufficast.logic.FlattrConfiguration.FlattrStatus;
+import de.knufficast.logic.db.DatabaseStats;
+import de.knufficast.util.CompressedTransfer;
+import de.knufficast.util.HttpTransport;
+import de.knufficast.util.file.ExternalFileUtil;
+import de.knufficast.util.file.FileUtil;
 import de.knufficast.watchers.UpdaterService;
 
 /**
@@ -41,6 +52,9 @@ public class SettingsFragment extends PreferenceFragment {
   private Preference flattrPreference;
   private EventBus eventBus;
   private static final String KEY_UPDATE_FREQ = "pref_key_update_freq";
+  private static final String KEY_DUMP_DB_STATS = "pref_key_dump_db_stats";
+  private static final String KEY_RECORD_DB_STATS = "pref_key_record_db_stats";
+  private static final String DB_STATS_FILE = "database-stats.txt";
   private final Listener<FlattrStatusEvent> flattrStatusListener = new Listener<FlattrStatusEvent>() {
     @Override
     public void onEvent(final FlattrStatusEvent event) {
@@ -64,6 +78,9 @@ public class SettingsFragment extends PreferenceFragment {
       if (key.equals(KEY_UPDATE_FREQ)) {
         UpdaterService.init();
         updateFreqPref();
+      } else if (key.equals(KEY_RECORD_DB_STATS)) {
+        DatabaseStats.setEnabled(App.get().getConfiguration()
+            .recordDatabaseStats());
       }
     }
   };
@@ -74,6 +91,14 @@ public class SettingsFragment extends PreferenceFragment {
     addPreferencesFromResource(R.xml.settings_fragment);
     updateFreqPreference = (ListPreference) findPreference("pref_key_update_freq");
     flattrPreference = findPreference("pref_key_flattr_intent");
+    findPreference(KEY_DUMP_DB_STATS).setOnPreferenceClickListener(
+        new OnPreferenceClickListener() {
+          @Override
+          public boolean onPreferenceClick(Preference preference) {
+            dumpDatabaseStats();
+            return true;
+          }
+        });
     updateFreqPref();
     updateFlattrPref(App.get().getConfiguration().getFlattrConfig().getStatus());
   }
@@ -83,6 +108,36 @@ public class SettingsFragment extends PreferenceFragment {
         R.string.pref_summary_update_freq, updateFreqPreference.getEntry()));
   }
 
+  /**
+   * Writes the database statistics to a file on external storage, so that
+   * they can be attached to bug reports.
+   */
+  private void dumpDatabaseStats() {
+    FileUtil fileUtil = new ExternalFileUtil(getActivity());
+    try {
+      PrintWriter out = new PrintWriter(fileUtil.write(DB_STATS_FILE, false));
+      try {
+        App.get().getDB().dumpStats(out);
+        out.println();
+        out.println("unchanged feeds not parsed: "
+            + UpdaterService.getSkippedParses());
+        out.println("bytes transferred: "
+            + CompressedTransfer.getTotalWireBytes() + " for "
+            + CompressedTransfer.getTotalDecodedBytes() + " decompressed");
+        HttpTransport.get().dumpStats(out);
+      } finally {
+        out.close();
+      }
+      Toast.makeText(getActivity(), getString(R.string.db_stats_dumped,
+          fileUtil.resolveFile(DB_STATS_FILE).getAbsolutePath()),
+          Toast.LENGTH_LONG).show();
+    } catch (IOException e) {
+      Log.e("SettingsFragment", "Could not dump database statistics", e);
+      Toast.makeText(getActivity(), R.string.db_stats_dump_failed,
+          Toast.LENGTH_SHORT).show();
+    }
+  }
+
   private void updateFlattrPref(FlattrConfiguration.FlattrStatus status) {
     if (status == FlattrStatus.NOT_AUTHENTICATED) {
       flattrPreference.setSummary(R.string.flattr_auth_error);
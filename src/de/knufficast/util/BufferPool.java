@@ -0,0 +1,77 @@
+/*******************************************************************************
+ * Copyright 2012 Crazywater
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.knufficast.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lends out large buffers for copying downloads to disk, so that every
+ * download (and every segment of one) doesn't allocate its own and leave it to
+ * the garbage collector afterwards.
+ * 
+ * @author crazywater
+ * 
+ */
+public class BufferPool {
+  public static final int BUFFER_SIZE = 128 * 1024;
+  // enough for all download threads with their segments
+  private static final int MAX_POOLED = 8;
+
+  private static final Queue<ByteBuffer> pool = new ConcurrentLinkedQueue<ByteBuffer>();
+  private static final AtomicInteger pooled = new AtomicInteger();
+
+  /**
+   * Returns an empty buffer of {@link #BUFFER_SIZE}. Give it back with
+   * {@link #release} when done.
+   */
+  public static ByteBuffer acquire() {
+    ByteBuffer buffer = pool.poll();
+    if (buffer == null) {
+      return ByteBuffer.allocate(BUFFER_SIZE);
+    }
+    pooled.decrementAndGet();
+    buffer.clear();
+    return buffer;
+  }
+
+  public static void release(ByteBuffer buffer) {
+    if (pooled.incrementAndGet() <= MAX_POOLED) {
+      pool.offer(buffer);
+    } else {
+      pooled.decrementAndGet();
+    }
+  }
+
+  /**
+   * Reads at most {@code max} bytes from the stream straight into the
+   * buffer's array, and readies the buffer for writing them to a channel.
+   * 
+   * @return the number of bytes read, or -1 at the end of the stream
+   */
+  public static int read(InputStream in, ByteBuffer buffer, long max)
+      throws IOException {
+    buffer.clear();
+    int read = in.read(buffer.array(), buffer.arrayOffset(),
+        (int) Math.min(buffer.capacity(), max));
+    buffer.limit(Math.max(read, 0));
+    return read;
+  }
+}
@@ -0,0 +1,233 @@
+/*******************************************************************************
+ * Copyright 2012 Crazywater
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.knufficast.util;
+
+import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import android.util.Log;
+
+/**
+ * Negotiates gzip/deflate compression for a fetch and decompresses the
+ * response while it is being read. Counts the bytes that came over the wire
+ * and the bytes they decompressed to; the counts of a fetch are logged and
+ * added to the totals when its stream is closed.
+ * 
+ * @author crazywater
+ * 
+ */
+public class CompressedTransfer {
+  public static final String ACCEPT_ENCODING = "gzip, deflate";
+
+  private static final AtomicLong totalWireBytes = new AtomicLong();
+  private static final AtomicLong totalDecodedBytes = new AtomicLong();
+
+  private final String url;
+  private final CountingInputStream wire;
+  private final CountingInputStream decoded;
+  private boolean closed = false;
+
+  private CompressedTransfer(String url, String contentEncoding,
+      InputStream in) throws IOException {
+    this.url = url;
+    wire = new CountingInputStream(in);
+    decoded = new CountingInputStream(decode(contentEncoding, wire));
+  }
+
+  /**
+   * Asks the server for a compressed response. Must be called before
+   * connecting. Setting the header ourselves also turns off the platform's
+   * transparent gzip, which would hide the compressed size.
+   */
+  public static void request(HttpURLConnection connection) {
+    connection.setRequestProperty("Accept-Encoding", ACCEPT_ENCODING);
+  }
+
+  /**
+   * Starts reading the response of the exchange.
+   */
+  public static CompressedTransfer open(HttpTransport.Exchange exchange)
+      throws IOException {
+    HttpURLConnection connection = exchange.getConnection();
+    return new CompressedTransfer(connection.getURL().toString(),
+        connection.getContentEncoding(), exchange.getInputStream());
+  }
+
+  /**
+   * Starts reading a response body that was sent with the given
+   * Content-Encoding, which may be null.
+   */
+  public static CompressedTransfer open(String url, String contentEncoding,
+      InputStream in) throws IOException {
+    return new CompressedTransfer(url, contentEncoding, in);
+  }
+
+  /**
+   * The decompressed response. Closing it ends the transfer.
+   */
+  public InputStream getStream() {
+    return new FilterInputStream(decoded) {
+      @Override
+      public void close() throws IOException {
+        try {
+          super.close();
+        } finally {
+          finish();
+        }
+      }
+    };
+  }
+
+  /**
+   * How many bytes have been read from the network so far.
+   */
+  public long getWireBytes() {
+    return wire.getCount();
+  }
+
+  /**
+   * How many bytes the response has decompressed to so far.
+   */
+  public long getDecodedBytes() {
+    return decoded.getCount();
+  }
+
+  /**
+   * Bytes read from the network by all finished transfers since the app
+   * started.
+   */
+  public static long getTotalWireBytes() {
+    return totalWireBytes.get();
+  }
+
+  /**
+   * What all finished transfers since the app started decompressed to.
+   */
+  public static long getTotalDecodedBytes() {
+    return totalDecodedBytes.get();
+  }
+
+  private synchronized void finish() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    totalWireBytes.addAndGet(getWireBytes());
+    totalDecodedBytes.addAndGet(getDecodedBytes());
+    Log.d("CompressedTransfer", url + ": " + getWireBytes() + " bytes for "
+        + getDecodedBytes());
+  }
+
+  private static InputStream decode(String contentEncoding, InputStream in)
+      throws IOException {
+    String encoding = contentEncoding == null ? "" : contentEncoding.trim()
+        .toLowerCase(Locale.US);
+    if ("gzip".equals(encoding) || "x-gzip".equals(encoding)) {
+      return new GZIPInputStream(in, 8192);
+    }
+    if ("deflate".equals(encoding)) {
+      // "deflate" should be zlib-wrapped, but some servers send raw deflate
+      BufferedInputStream buffered = new BufferedInputStream(in, 8192);
+      buffered.mark(2);
+      int first = buffered.read();
+      int second = buffered.read();
+      buffered.reset();
+      boolean zlib = first >= 0 && second >= 0 && (first & 0x0f) == 8
+          && ((first << 8) | second) % 31 == 0;
+      return new OwnInflaterInputStream(buffered, new Inflater(!zlib));
+    }
+    return in;
+  }
+
+  /**
+   * Frees the native memory of its {@link Inflater} when closed, which
+   * {@link InflaterInputStream} only does for inflaters it made itself.
+   */
+  private static class OwnInflaterInputStream extends InflaterInputStream {
+    private final Inflater inflater;
+    private boolean ended = false;
+
+    OwnInflaterInputStream(InputStream in, Inflater inflater) {
+      super(in, inflater, 8192);
+      this.inflater = inflater;
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        super.close();
+      } finally {
+        if (!ended) {
+          ended = true;
+          inflater.end();
+        }
+      }
+    }
+  }
+
+  /**
+   * Counts the bytes read through it.
+   */
+  private static class CountingInputStream extends FilterInputStream {
+    private volatile long count = 0;
+
+    CountingInputStream(InputStream in) {
+      super(in);
+    }
+
+    long getCount() {
+      return count;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b >= 0) {
+        count++;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      int read = super.read(buffer, offset, length);
+      if (read > 0) {
+        count += read;
+      }
+      return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = super.skip(n);
+      count += skipped;
+      return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+  }
+}
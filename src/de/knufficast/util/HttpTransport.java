@@ -0,0 +1,349 @@
+/*******************************************************************************
+ * Copyright 2012 Crazywater
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.knufficast.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.Security;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+
+/**
+ * The one way the app talks HTTP. Connections are kept alive and reused per
+ * host, every request has a connect and a read timeout, and at most
+ * {@link #MAX_PER_HOST} requests to the same host run at the same time.
+ * Counts requests, bytes and latency.
+ * 
+ * Streaming requests (feeds, downloads) go through {@link #open}, requests
+ * built with HttpClient (search, Flattr) through {@link #execute}.
+ * 
+ * @author crazywater
+ * 
+ */
+public class HttpTransport {
+  public static final int CONNECT_TIMEOUT_MS = 15 * 1000;
+  public static final int READ_TIMEOUT_MS = 30 * 1000;
+  public static final int MAX_PER_HOST = 4;
+  private static final int MAX_TOTAL = 16;
+  // how long resolved host names are reused
+  private static final int DNS_TTL_SECONDS = 5 * 60;
+  // how much of an unread response is skipped to keep the connection
+  private static final int MAX_DRAIN_BYTES = 16 * 1024;
+
+  private static final HttpTransport instance = new HttpTransport();
+
+  private final HttpClient httpClient;
+  private final Map<String, Semaphore> hostSlots = new HashMap<String, Semaphore>();
+
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+  private final AtomicLong bytes = new AtomicLong();
+  private final AtomicLong latencyNanos = new AtomicLong();
+  private final AtomicLong reused = new AtomicLong();
+
+  public static HttpTransport get() {
+    return instance;
+  }
+
+  private HttpTransport() {
+    System.setProperty("http.keepAlive", "true");
+    System.setProperty("http.maxConnections", String.valueOf(MAX_PER_HOST));
+    // neither HttpURLConnection nor HttpClient take a resolver, so the
+    // platform's address cache is told to keep answers longer
+    Security.setProperty("networkaddress.cache.ttl",
+        String.valueOf(DNS_TTL_SECONDS));
+
+    HttpParams params = new BasicHttpParams();
+    HttpConnectionParams.setConnectionTimeout(params, CONNECT_TIMEOUT_MS);
+    HttpConnectionParams.setSoTimeout(params, READ_TIMEOUT_MS);
+    ConnManagerParams.setMaxTotalConnections(params, MAX_TOTAL);
+    ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(
+        MAX_PER_HOST));
+    SchemeRegistry schemes = new SchemeRegistry();
+    schemes.register(new Scheme("http", PlainSocketFactory.getSocketFactory(),
+        80));
+    schemes.register(new Scheme("https", SSLSocketFactory.getSocketFactory(),
+        443));
+    httpClient = new DefaultHttpClient(new ThreadSafeClientConnManager(params,
+        schemes), params);
+  }
+
+  /**
+   * Opens a connection to the URL. Blocks while {@link #MAX_PER_HOST}
+   * exchanges with the host are open. The exchange must be closed.
+   */
+  public Exchange open(URL url) throws IOException {
+    Semaphore slot = getSlot(url.getHost());
+    try {
+      slot.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for " + url.getHost());
+    }
+    return open(url, slot);
+  }
+
+  /**
+   * Opens a connection to the URL if that leaves at least one of the host's
+   * slots free, else returns null without waiting. For extra connections that
+   * only speed up something that works without them.
+   */
+  public Exchange tryOpen(URL url) throws IOException {
+    Semaphore slot = getSlot(url.getHost());
+    if (!slot.tryAcquire(2)) {
+      return null;
+    }
+    slot.release();
+    return open(url, slot);
+  }
+
+  /**
+   * Opens the connection for an acquired slot, which is released on failure.
+   */
+  private Exchange open(URL url, Semaphore slot) throws IOException {
+    try {
+      HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+      connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+      connection.setReadTimeout(READ_TIMEOUT_MS);
+      return new Exchange(connection, slot);
+    } catch (IOException e) {
+      slot.release();
+      throw e;
+    }
+  }
+
+  /**
+   * Executes a request with the shared HttpClient. The content of the
+   * response's entity must be consumed or closed, otherwise the connection
+   * isn't returned to the pool.
+   */
+  public HttpResponse execute(HttpUriRequest request) throws IOException {
+    long start = System.nanoTime();
+    requests.incrementAndGet();
+    try {
+      return httpClient.execute(request);
+    } catch (IOException e) {
+      failures.incrementAndGet();
+      throw e;
+    } finally {
+      latencyNanos.addAndGet(System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * Counts the bytes of a response body read through the returned stream.
+   */
+  public InputStream count(InputStream in) {
+    return new FilterInputStream(in) {
+      @Override
+      public int read() throws IOException {
+        int b = super.read();
+        if (b >= 0) {
+          bytes.incrementAndGet();
+        }
+        return b;
+      }
+
+      @Override
+      public int read(byte[] buffer, int offset, int length)
+          throws IOException {
+        int read = super.read(buffer, offset, length);
+        if (read > 0) {
+          bytes.addAndGet(read);
+        }
+        return read;
+      }
+    };
+  }
+
+  /**
+   * Writes the counters in a human-readable form.
+   */
+  public void dumpStats(PrintWriter out) {
+    long count = requests.get();
+    out.println("http requests: " + count + ", failed: " + failures.get()
+        + ", connections kept for reuse: " + reused.get());
+    out.println("http bytes received: " + bytes.get());
+    out.println("http mean latency until headers: "
+        + (count == 0 ? 0 : latencyNanos.get() / count / 1000000) + " ms");
+  }
+
+  private synchronized Semaphore getSlot(String host) {
+    Semaphore slot = hostSlots.get(host);
+    if (slot == null) {
+      slot = new Semaphore(MAX_PER_HOST);
+      hostSlots.put(host, slot);
+    }
+    return slot;
+  }
+
+  /**
+   * One request and its response over an {@link HttpURLConnection}. Closing
+   * it frees the host's slot; the connection is kept for the next request to
+   * the host if the response has been read, or nearly.
+   * 
+   * @author crazywater
+   * 
+   */
+  public class Exchange {
+    private final HttpURLConnection connection;
+    private final Semaphore slot;
+    private int responseCode = -1;
+    private Body body;
+    private boolean closed = false;
+
+    private Exchange(HttpURLConnection connection, Semaphore slot) {
+      this.connection = connection;
+      this.slot = slot;
+    }
+
+    /**
+     * The connection, to set request headers before {@link #connect} and read
+     * response headers after it.
+     */
+    public HttpURLConnection getConnection() {
+      return connection;
+    }
+
+    /**
+     * Sends the request if that hasn't happened yet and waits for the
+     * response headers.
+     * 
+     * @return the response code
+     */
+    public synchronized int connect() throws IOException {
+      if (responseCode >= 0) {
+        return responseCode;
+      }
+      long start = System.nanoTime();
+      requests.incrementAndGet();
+      try {
+        responseCode = connection.getResponseCode();
+      } catch (IOException e) {
+        failures.incrementAndGet();
+        throw e;
+      } finally {
+        latencyNanos.addAndGet(System.nanoTime() - start);
+      }
+      return responseCode;
+    }
+
+    /**
+     * The response body. Closing it finishes the response.
+     */
+    public synchronized InputStream getInputStream() throws IOException {
+      connect();
+      if (body == null) {
+        body = new Body(connection.getInputStream());
+      }
+      return body;
+    }
+
+    public synchronized void close() {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      try {
+        if (responseCode >= 0) {
+          getInputStream().close();
+        } else {
+          connection.disconnect();
+        }
+      } catch (IOException e) {
+        connection.disconnect();
+      } finally {
+        slot.release();
+      }
+    }
+
+    /**
+     * Counts what is read and notices the end of the response.
+     */
+    private class Body extends FilterInputStream {
+      private boolean ended = false;
+      private boolean bodyClosed = false;
+
+      Body(InputStream in) {
+        super(count(in));
+      }
+
+      @Override
+      public int read() throws IOException {
+        int b = super.read();
+        ended |= b < 0;
+        return b;
+      }
+
+      @Override
+      public int read(byte[] buffer, int offset, int length)
+          throws IOException {
+        int read = super.read(buffer, offset, length);
+        ended |= read < 0;
+        return read;
+      }
+
+      @Override
+      public void close() throws IOException {
+        if (bodyClosed) {
+          return;
+        }
+        bodyClosed = true;
+        try {
+          byte[] buffer = new byte[4096];
+          int drained = 0;
+          while (!ended && drained < MAX_DRAIN_BYTES) {
+            int read = read(buffer, 0, buffer.length);
+            drained += Math.max(read, 0);
+          }
+        } catch (IOException e) {
+          // the connection can't be reused then
+        }
+        try {
+          super.close();
+        } finally {
+          if (ended) {
+            reused.incrementAndGet();
+          } else {
+            // too much left: cheaper to open a new connection next time
+            connection.disconnect();
+          }
+        }
+      }
+    }
+  }
+}
@@ -20,46 +20,49 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpUriRequest;
-import org.apache.http.impl.client.DefaultHttpClient;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 /**
- * An utility class for HTTP interactions.
+ * An utility class for HTTP interactions. Requests go through the shared
+ * {@link HttpTransport}. Asks for compressed responses and decompresses them
+ * while reading, see {@link CompressedTransfer}.
  * 
  * @author crazywater
  * 
  */
 public class HttpUtil {
-  private final HttpClient httpClient = new DefaultHttpClient();
-
   public JSONObject getJson(HttpUriRequest request) throws IOException,
       JSONException {
-    HttpResponse response = httpClient.execute(request);
-    String result = readAll(response.getEntity());
+    request.setHeader("Accept-Encoding", CompressedTransfer.ACCEPT_ENCODING);
+    HttpResponse response = HttpTransport.get().execute(request);
+    String result = readAll(request, response.getEntity());
     return new JSONObject(result);
   }
 
   public JSONArray getJsonArray(HttpUriRequest request) throws IOException,
       JSONException {
-    HttpResponse response = httpClient.execute(request);
-    String result = readAll(response.getEntity());
+    request.setHeader("Accept-Encoding", CompressedTransfer.ACCEPT_ENCODING);
+    HttpResponse response = HttpTransport.get().execute(request);
+    String result = readAll(request, response.getEntity());
     return new JSONArray(result);
   }
 
   /**
-   * Reads an HttpEntity into an entire string.
+   * Reads an HttpEntity into an entire string, decompressing it if needed.
    * 
+   * @param request
    * @param entity
    * @return
    * @throws IOException
    */
-  private String readAll(HttpEntity entity) throws IOException {
+  private String readAll(HttpUriRequest request, HttpEntity entity)
+      throws IOException {
     if (entity == null) {
       return "";
     }
@@ -67,13 +70,21 @@ public class HttpUtil {
     if (inputStream == null) {
       return "";
     }
+    Header encoding = entity.getContentEncoding();
+    CompressedTransfer transfer = CompressedTransfer.open(request.getURI()
+        .toString(), encoding == null ? null : encoding.getValue(),
+        HttpTransport.get().count(inputStream));
     BufferedReader reader = new BufferedReader(new InputStreamReader(
-        inputStream));
-    StringBuilder builder = new StringBuilder();
-    String line = "";
-    while ((line = reader.readLine()) != null) {
-      builder.append(line);
+        transfer.getStream()));
+    try {
+      StringBuilder builder = new StringBuilder();
+      String line = "";
+      while ((line = reader.readLine()) != null) {
+        builder.append(line);
+      }
+      return builder.toString();
+    } finally {
+      reader.close();
     }
-    return builder.toString();
   }
 }
@@ -0,0 +1,86 @@
+/*******************************************************************************
+ * Copyright 2012 Crazywater
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.knufficast.watchers;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import de.knufficast.App;
+import de.knufficast.events.EventBus;
+import de.knufficast.events.Listener;
+import de.knufficast.events.QueueChangedEvent;
+import de.knufficast.logic.db.DBEpisode;
+
+/**
+ * A watcher that sanitizes the content of queued episodes in the background
+ * whenever the queue changes, so that opening them doesn't have to. Changes
+ * that arrive while a pass is pending are handled by that pass.
+ * 
+ * @author crazywater
+ * 
+ */
+public class ContentPrewarmer {
+  private final EventBus eventBus;
+  private final AtomicBoolean pending = new AtomicBoolean();
+  private final ExecutorService executor = Executors
+      .newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "ContentPrewarmer");
+          thread.setDaemon(true);
+          thread.setPriority(Thread.MIN_PRIORITY);
+          return thread;
+        }
+      });
+
+  private final Runnable prewarm = new Runnable() {
+    @Override
+    public void run() {
+      pending.set(false);
+      for (DBEpisode episode : App.get().getQueue().asList()) {
+        episode.storeSanitizedContent();
+      }
+    }
+  };
+
+  private final Listener<QueueChangedEvent> queueChangedListener = new Listener<QueueChangedEvent>() {
+    @Override
+    public void onEvent(QueueChangedEvent event) {
+      schedule();
+    }
+  };
+
+  public ContentPrewarmer(EventBus eventBus) {
+    this.eventBus = eventBus;
+  }
+
+  public void register() {
+    eventBus.addListener(QueueChangedEvent.class, queueChangedListener);
+    schedule();
+  }
+
+  public void unregister() {
+    eventBus.removeListener(QueueChangedEvent.class, queueChangedListener);
+  }
+
+  private void schedule() {
+    if (!pending.getAndSet(true)) {
+      executor.execute(prewarm);
+    }
+  }
+}
@@ -16,19 +16,22 @@
 package de.knufficast.watchers;
 
 import java.io.File;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import android.content.Context;
 import android.util.Log;
 import android.util.Pair;
 import de.knufficast.App;
+import de.knufficast.logic.DownloadScheduler;
 import de.knufficast.logic.DownloadTask;
+import de.knufficast.logic.SegmentedDownload;
 import de.knufficast.logic.db.Configuration;
 import de.knufficast.logic.db.DBEpisode;
 import de.knufficast.logic.db.DBEpisode.DownloadState;
@@ -52,10 +55,35 @@ public class QueueDownloader {
 
   private Map<DBEpisode, DownloadTask> downloadTasks = new HashMap<DBEpisode, DownloadTask>();
 
-  private static final int MAX_DOWNLOAD_THREADS = 2;
-  private final BlockingQueue<Runnable> downloadTaskQueue = new LinkedBlockingQueue<Runnable>();
-  private final ThreadPoolExecutor downloadExecutor = new ThreadPoolExecutor(1,
-      MAX_DOWNLOAD_THREADS, 1, TimeUnit.SECONDS, downloadTaskQueue);
+  // the scheduler limits how many run, so this only supplies the threads
+  private final ExecutorService downloadExecutor = Executors
+      .newCachedThreadPool();
+  private final DownloadScheduler<DBEpisode> scheduler = new DownloadScheduler<DBEpisode>(
+      Configuration.DEFAULT_DOWNLOAD_CONCURRENCY,
+      new DownloadScheduler.Downloads<DBEpisode>() {
+        @Override
+        public String getHost(DBEpisode episode) {
+          try {
+            return new URL(episode.getDataUrl()).getHost();
+          } catch (MalformedURLException e) {
+            return "";
+          }
+        }
+
+        @Override
+        public void start(DBEpisode episode) {
+          startDownload(episode);
+        }
+
+        @Override
+        public void stop(DBEpisode episode) {
+          DownloadTask task = downloadTasks.get(episode);
+          if (task != null) {
+            task.cancel(true);
+          }
+          episode.setDownloadState(DownloadState.PAUSED);
+        }
+      });
 
   private QueueDownloader(Context context) {
     this.context = context;
@@ -69,54 +97,73 @@ public class QueueDownloader {
     return instance;
   }
 
+  /**
+   * Returns the scheduler that decides which queue items are downloaded.
+   */
+  public DownloadScheduler<DBEpisode> getScheduler() {
+    return scheduler;
+  }
+
   public void cancelDownloads() {
-    for (Entry<DBEpisode, DownloadTask> entry : downloadTasks.entrySet()) {
-      entry.getValue().cancel(true);
-      entry.getKey().setDownloadState(DownloadState.PAUSED);
-    }
+    scheduler.stopAll();
   }
 
+  /**
+   * Hands the queue items that aren't downloaded yet to the scheduler in
+   * queue order, so that the top of the queue is downloaded first. Moving an
+   * item to the top stops a less important download if all slots are taken.
+   */
   public void restartDownloads() {
     Configuration config = App.get().getConfiguration();
     if (netUtil.isOnWifi() || !config.downloadNeedsWifi()) {
-      for (final DBEpisode episode : App.get().getQueue().asList()) {
-        if (episode.getDownloadState() != DownloadState.FINISHED
-            && episode.getDownloadState() != DownloadState.DOWNLOADING) {
-          final String url = episode.getDataUrl();
-          episode.setDownloadState(DownloadState.DOWNLOADING);
-          Callback<Pair<Long, Long>> progressCallback = new Callback<Pair<Long, Long>>() {
-            @Override
-            public void call(Pair<Long, Long> progress) {
-              episode.setDownloadProgress(progress.first, progress.second);
-            }
-          };
-          BooleanCallback<Void, String> finishedCallback = new BooleanCallback<Void, String>() {
-            @Override
-            public void success(Void unused) {
-              episode.setDownloadState(DownloadState.FINISHED);
-              downloadTasks.remove(episode);
-            }
-
-            @Override
-            public void fail(String error) {
-              episode.setDownloadState(DownloadState.ERROR);
-              downloadTasks.remove(episode);
-            }
-          };
-          DownloadTask task = new DownloadTask(context, progressCallback, finishedCallback);
-          downloadTasks.put(episode, task);
-          task.executeOnExecutor(downloadExecutor, url,
-              episode.getFileLocation());
+      List<DBEpisode> wanted = new ArrayList<DBEpisode>();
+      for (DBEpisode episode : App.get().getQueue().asList()) {
+        if (episode.getDownloadState() != DownloadState.FINISHED) {
+          wanted.add(episode);
         }
       }
+      scheduler.setConcurrency(config.getDownloadConcurrency());
+      scheduler.setWanted(wanted);
     }
   }
 
+  private void startDownload(final DBEpisode episode) {
+    episode.setDownloadState(DownloadState.DOWNLOADING);
+    Callback<Pair<Long, Long>> progressCallback = new Callback<Pair<Long, Long>>() {
+      @Override
+      public void call(Pair<Long, Long> progress) {
+        App.get().getDownloadProgress().update(episode, progress.first,
+            progress.second);
+      }
+    };
+    BooleanCallback<Void, String> finishedCallback = new BooleanCallback<Void, String>() {
+      @Override
+      public void success(Void unused) {
+        downloadTasks.remove(episode);
+        App.get().getDownloadProgress().finish(episode);
+        scheduler.finished(episode);
+        episode.setDownloadState(DownloadState.FINISHED);
+      }
+
+      @Override
+      public void fail(String error) {
+        downloadTasks.remove(episode);
+        App.get().getDownloadProgress().finish(episode);
+        scheduler.finished(episode);
+        if (error != DownloadTask.CANCELLED) {
+          episode.setDownloadState(DownloadState.ERROR);
+        }
+      }
+    };
+    DownloadTask task = new DownloadTask(context, progressCallback,
+        finishedCallback);
+    downloadTasks.put(episode, task);
+    task.executeOnExecutor(downloadExecutor, episode.getDataUrl(),
+        episode.getFileLocation());
+  }
+
   public void deleteDownload(DBEpisode episode) {
-    if (downloadTasks.containsKey(episode)) {
-      downloadTasks.get(episode).cancel(true);
-      downloadTasks.remove(episode);
-    }
+    scheduler.remove(episode);
     File file = new ExternalFileUtil(context).resolveFile(episode
         .getFileLocation());
     if (file.exists()) {
@@ -126,6 +173,8 @@ public class QueueDownloader {
             "Could not delete " + episode.getFileLocation());
       }
     }
+    SegmentedDownload.deleteState(file);
+    App.get().getDownloadProgress().forget(episode);
     episode.setDownloadProgress(0, episode.getTotalBytes());
     episode.setDownloadState(DownloadState.NONE);
   }
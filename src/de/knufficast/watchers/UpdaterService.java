@@ -15,11 +15,21 @@
  ******************************************************************************/
 package de.knufficast.watchers;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.xmlpull.v1.XmlPullParserException;
 
@@ -32,16 +42,24 @@ import android.os.SystemClock;
 import android.util.Log;
 import de.knufficast.App;
 import de.knufficast.logic.FeedDownloader;
+import de.knufficast.logic.RefreshSchedule;
 import de.knufficast.logic.db.Configuration;
 import de.knufficast.logic.db.DBEpisode;
 import de.knufficast.logic.db.DBFeed;
+import de.knufficast.logic.db.Projection;
+import de.knufficast.logic.db.SQLiteHelper;
 import de.knufficast.logic.db.XMLToDBWriter;
-import de.knufficast.logic.xml.XMLFeed;
 import de.knufficast.util.BooleanCallback;
+import de.knufficast.util.CompressedTransfer;
+import de.knufficast.util.HttpTransport;
 import de.knufficast.util.NetUtil;
 
 /**
- * A service to refresh the feeds.
+ * A service to refresh the feeds. Several feeds are downloaded and parsed at
+ * the same time, but never too many from one host (see {@link HttpTransport}),
+ * and their episodes are
+ * written to the database by a single writer thread. Upon an alarm, only the
+ * feeds that are due according to their {@link RefreshSchedule} are refreshed.
  * 
  * @author crazywater
  * 
@@ -50,7 +68,13 @@ public class UpdaterService extends IntentService {
   private final NetUtil netUtil;
   private final BooleanCallback<DBFeed, DBFeed> callback;
 
+  // feeds refreshed at the same time
+  private static final int THREADS = 6;
+  // so that one slow server can't hold up the whole refresh
+  private static final long FEED_TIMEOUT_MS = 60 * 1000;
+
   private static AtomicBoolean refreshing = new AtomicBoolean();
+  private static final AtomicLong skippedParses = new AtomicLong();
 
   public UpdaterService() {
     super("UpdaterService");
@@ -64,50 +88,177 @@ public class UpdaterService extends IntentService {
     this.callback = callback;
   }
 
+  /**
+   * Returns how many downloaded feeds were not parsed since the app started,
+   * because their content was the same as last time.
+   */
+  public static long getSkippedParses() {
+    return skippedParses.get();
+  }
+
   /**
    * Refreshes all subscribed feeds. Locks the state such that only one
-   * refresher can run at the same time.
+   * refresher can run at the same time. The callback is called from the
+   * worker threads as soon as a feed is done.
    */
   public boolean refreshAll() {
+    return refresh(App.get().getConfiguration().getAllFeeds());
+  }
+
+  /**
+   * Like {@link #refreshAll}, but only refreshes the feeds that are due.
+   */
+  public boolean refreshDue() {
+    Configuration config = App.get().getConfiguration();
+    List<DBFeed> allFeeds = config.getAllFeeds();
+    List<DBFeed> due = new RefreshSchedule(config.getUpdateInterval()).getDue(
+        allFeeds, System.currentTimeMillis());
+    Log.d("UpdaterService", due.size() + " of " + allFeeds.size()
+        + " feeds are due");
+    return refresh(due);
+  }
+
+  private boolean refresh(List<DBFeed> feeds) {
     HttpURLConnection.setFollowRedirects(true);
     if (!refreshing.getAndSet(true)) {
       Configuration config = App.get().getConfiguration();
-      List<DBFeed> allFeeds = config.getAllFeeds();
-      boolean refreshSuccessful = true;
-      // refresh feeds
-      for (DBFeed feed : allFeeds) {
-        Log.d("UpdaterService", "Refreshing Feed " + feed.getFeedUrl());
-        try {
-          refresh(config, feed);
-          if (callback != null) {
-            callback.success(feed);
-          }
-        } catch (Exception e) {
-          e.printStackTrace();
-          refreshSuccessful = false;
-          if (callback != null) {
-            callback.fail(feed);
+      Map<String, List<DBFeed>> feedsByHost = groupByHost(feeds);
+      AtomicBoolean refreshSuccessful = new AtomicBoolean(true);
+      ExecutorService workers = Executors.newFixedThreadPool(THREADS,
+          daemonThreads("UpdaterService"));
+      ExecutorService writer = Executors
+          .newSingleThreadExecutor(daemonThreads("UpdaterService writer"));
+      // round robin over the hosts, so that the workers don't all queue up
+      // behind the feeds of one host
+      int rounds = 0;
+      for (List<DBFeed> hostFeeds : feedsByHost.values()) {
+        rounds = Math.max(rounds, hostFeeds.size());
+      }
+      for (int i = 0; i < rounds; i++) {
+        for (List<DBFeed> hostFeeds : feedsByHost.values()) {
+          if (i < hostFeeds.size()) {
+            workers.execute(new FeedRefresh(config, hostFeeds.get(i), writer,
+                refreshSuccessful));
           }
         }
       }
+      workers.shutdown();
+      try {
+        // every feed is bounded by its own timeout
+        while (!workers.awaitTermination(FEED_TIMEOUT_MS,
+            TimeUnit.MILLISECONDS)) {
+          Log.d("UpdaterService", "Still refreshing feeds");
+        }
+        // writes of feeds that failed halfway may still be pending
+        writer.shutdown();
+        writer.awaitTermination(FEED_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        workers.shutdownNow();
+        writer.shutdown();
+        refreshSuccessful.set(false);
+      }
       // auto-enqueue all new episodes
       if (App.get().getConfiguration().autoEnqueue()) {
-        for (DBFeed feed : allFeeds) {
-          for (DBEpisode episode : feed.getEpisodes()) {
-            if (episode.isNew() && episode.hasDownload()) {
-              App.get().getQueue().add(episode);
-              episode.setNew(false);
-            }
+        // episodes only become new when they are inserted, so the query finds
+        // all candidates; clearing the flag may still be pending, so it is
+        // checked again here
+        String[] columns = { SQLiteHelper.C_EP_IS_NEW,
+            SQLiteHelper.C_EP_DATA_URL };
+        Projection episodes = App.get().getDB().project(
+            SQLiteHelper.TABLE_EPISODES, columns,
+            SQLiteHelper.C_EP_IS_NEW + " != 0 and "
+                + SQLiteHelper.C_EP_DATA_URL + " != ''", null,
+            SQLiteHelper.C_EP_FEED_ID + " DESC, " + SQLiteHelper.C_ID + " DESC");
+        long[] ids = episodes.getIds();
+        long[] isNew = episodes.getLongs(SQLiteHelper.C_EP_IS_NEW);
+        String[] dataUrls = episodes.getStrings(SQLiteHelper.C_EP_DATA_URL);
+        for (int i = 0; i < ids.length; i++) {
+          if (isNew[i] != 0 && !"".equals(dataUrls[i])) {
+            DBEpisode episode = App.get().getDB().getEpisode(ids[i]);
+            App.get().getQueue().add(episode);
+            episode.setNew(false);
           }
         }
       }
       App.get().save();
       refreshing.set(false);
-      return refreshSuccessful;
+      return refreshSuccessful.get();
     }
     return false;
   }
 
+  /**
+   * Refreshes one feed on a worker thread.
+   */
+  private class FeedRefresh implements Runnable {
+    private final Configuration config;
+    private final DBFeed feed;
+    private final ExecutorService writer;
+    private final AtomicBoolean refreshSuccessful;
+
+    FeedRefresh(Configuration config, DBFeed feed, ExecutorService writer,
+        AtomicBoolean refreshSuccessful) {
+      this.config = config;
+      this.feed = feed;
+      this.writer = writer;
+      this.refreshSuccessful = refreshSuccessful;
+    }
+
+    @Override
+    public void run() {
+      try {
+        Log.d("UpdaterService", "Refreshing Feed " + feed.getFeedUrl());
+        refresh(config, feed, writer);
+        if (callback != null) {
+          callback.success(feed);
+        }
+      } catch (Exception e) {
+        e.printStackTrace();
+        refreshSuccessful.set(false);
+        new RefreshSchedule(config.getUpdateInterval()).failed(feed,
+            System.currentTimeMillis());
+        if (callback != null) {
+          callback.fail(feed);
+        }
+      }
+    }
+  }
+
+  /**
+   * Groups the feeds by the host they are downloaded from.
+   */
+  private static Map<String, List<DBFeed>> groupByHost(List<DBFeed> feeds) {
+    Map<String, List<DBFeed>> byHost = new LinkedHashMap<String, List<DBFeed>>();
+    for (DBFeed feed : feeds) {
+      String host;
+      try {
+        host = new URL(feed.getFeedUrl()).getHost();
+      } catch (MalformedURLException e) {
+        // will fail on its own when it is refreshed
+        host = "";
+      }
+      List<DBFeed> hostFeeds = byHost.get(host);
+      if (hostFeeds == null) {
+        hostFeeds = new ArrayList<DBFeed>();
+        byHost.put(host, hostFeeds);
+      }
+      hostFeeds.add(feed);
+    }
+    return byHost;
+  }
+
+  private static ThreadFactory daemonThreads(final String name) {
+    return new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+  }
+
   private void retryDownloads() {
     // restart downloads of new items
     QueueDownloader.get().restartDownloads();
@@ -117,53 +268,81 @@ public class UpdaterService extends IntentService {
     QueueDownloader.get().cancelDownloads();
   }
 
-  private void refresh(Configuration config, DBFeed feed) throws IOException,
-  XmlPullParserException {
+  private void refresh(Configuration config, DBFeed feed,
+      ExecutorService writer) throws IOException, XmlPullParserException {
     boolean needsUpdate = true;
-    HttpURLConnection conn = (HttpURLConnection) new URL(feed.getFeedUrl())
-    .openConnection();
-    if (feed.getLastUpdated() > 0) {
-      conn.setIfModifiedSince(feed.getLastUpdated());
-    }
-    if (feed.getETag() != null) {
-      conn.addRequestProperty("If-None-Match", feed.getETag());
-    }
-    conn.connect();
-    if (conn.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
-      needsUpdate = false;
-    }
-    long lastModifiedTimestamp = conn.getLastModified();
-    if (lastModifiedTimestamp > 0
-        && lastModifiedTimestamp <= feed.getLastUpdated()) {
-      needsUpdate = false;
-    }
-    if (needsUpdate) {
-      List<XMLFeed> feeds = new FeedDownloader().getFeeds(conn);
-      new XMLToDBWriter().mergeFeeds(feeds);
+    HttpTransport.Exchange exchange = HttpTransport.get().open(
+        new URL(feed.getFeedUrl()));
+    int newEpisodes = 0;
+    try {
+      HttpURLConnection conn = exchange.getConnection();
+      if (feed.getLastUpdated() > 0) {
+        conn.setIfModifiedSince(feed.getLastUpdated());
+      }
+      if (feed.getETag() != null) {
+        conn.addRequestProperty("If-None-Match", feed.getETag());
+      }
+      CompressedTransfer.request(conn);
+      if (exchange.connect() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+        needsUpdate = false;
+      }
+      long lastModifiedTimestamp = conn.getLastModified();
+      if (lastModifiedTimestamp > 0
+          && lastModifiedTimestamp <= feed.getLastUpdated()) {
+        needsUpdate = false;
+      }
+      if (needsUpdate) {
+        FeedDownloader downloader = new FeedDownloader();
+        downloader.setDeadline(System.nanoTime() + FEED_TIMEOUT_MS * 1000000);
+        XMLToDBWriter.Merger merger = new XMLToDBWriter().newMerger(writer);
+        if (conn.getHeaderField("ETag") != null || lastModifiedTimestamp > 0) {
+          // stops downloading as soon as the rest of the feed is known
+          downloader.streamFeeds(exchange, merger);
+          merger.finish();
+          newEpisodes = merger.getNewEpisodeCount();
+        } else {
+          // without validators, comparing the content is the only way to
+          // tell that the feed hasn't changed
+          FeedDownloader.DigestedBody body = downloader.download(exchange);
+          if (body.getDigest().equals(feed.getContentDigest())) {
+            skippedParses.incrementAndGet();
+          } else {
+            downloader.streamFeeds(exchange, new ByteArrayInputStream(body
+                .getBody()), merger);
+            merger.finish();
+            newEpisodes = merger.getNewEpisodeCount();
+            feed.setContentDigest(body.getDigest());
+          }
+        }
+      }
+    } finally {
+      exchange.close();
     }
+    new RefreshSchedule(config.getUpdateInterval()).refreshed(feed,
+        newEpisodes, System.currentTimeMillis());
   }
 
   @Override
   protected void onHandleIntent(Intent intent) {
     long nowTime = System.currentTimeMillis();
     Configuration config = App.get().getConfiguration();
-    // only update feeds if last time is long enough ago
-    // we need to check this because otherwise we'd refresh
-    // upon every network change
-    if (nowTime - config.getLastUpdate() >= config.getUpdateInterval()) {
-      boolean refreshSuccessful = netUtil.isOnline();
-      if (netUtil.isOnline()) {
-        if (!config.refreshNeedsWifi() || netUtil.isOnWifi()) {
-          refreshSuccessful = refreshAll();
-        } else {
-          refreshSuccessful = false;
-        }
-      }
-      if (refreshSuccessful) {
-        config.setLastUpdate(nowTime);
-        App.get().save();
+    // only due feeds are refreshed, so network changes don't refresh
+    // everything
+    boolean refreshSuccessful = netUtil.isOnline();
+    if (netUtil.isOnline()) {
+      if (!config.refreshNeedsWifi() || netUtil.isOnWifi()) {
+        refreshSuccessful = refreshDue();
+      } else {
+        refreshSuccessful = false;
       }
     }
+    if (refreshSuccessful) {
+      config.setLastUpdate(nowTime);
+      App.get().save();
+    }
+    // failed feeds have backed off; feeds that couldn't be tried at all, e.g.
+    // without WiFi, are retried after the user's interval
+    scheduleWakeup(System.currentTimeMillis() + config.getUpdateInterval());
     if (netUtil.isOnline() && config.autoRetry()) {
       retryDownloads();
     }
@@ -172,7 +351,18 @@ public class UpdaterService extends IntentService {
     }
   }
 
+  /**
+   * Sets the alarm that refreshes the due feeds, right away if any are due.
+   */
   public static void init() {
+    scheduleWakeup(System.currentTimeMillis());
+  }
+
+  /**
+   * Sets the alarm for when the next feed is due. Overdue feeds are refreshed
+   * at retryAt.
+   */
+  private static void scheduleWakeup(long retryAt) {
     AlarmManager alarmMgr = (AlarmManager) App.get().getSystemService(
         Context.ALARM_SERVICE);
     Intent intent = new Intent(App.get(), UpdateAlarmReceiver.class);
@@ -182,9 +372,13 @@ public class UpdaterService extends IntentService {
     // remove any pending events
     alarmMgr.cancel(pendingIntent);
 
-    // start a repeating intent
-    alarmMgr.setInexactRepeating(AlarmManager.ELAPSED_REALTIME_WAKEUP,
-        SystemClock.elapsedRealtime(), App.get().getConfiguration()
-            .getUpdateInterval(), pendingIntent);
+    // a single alarm, since the next one depends on what the refresh finds
+    Configuration config = App.get().getConfiguration();
+    long now = System.currentTimeMillis();
+    long wakeup = new RefreshSchedule(config.getUpdateInterval())
+        .getNextWakeup(config.getAllFeeds(), now, retryAt);
+    alarmMgr.set(AlarmManager.ELAPSED_REALTIME_WAKEUP,
+        SystemClock.elapsedRealtime() + Math.max(0, wakeup - now),
+        pendingIntent);
   }
 }